@@ -0,0 +1,302 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+
+/**
+ * Bounded, reference-counted pool of open archive handles.
+ * <p>
+ * Handles are keyed by their kind and by the archive's path, size and
+ * modification time, so a modified archive is never served through a stale
+ * handle. Shared handles (such as file channels, which support positional
+ * reads) are used by any number of leases at once, exclusive handles are
+ * leased to a single user at a time and additional instances are opened
+ * when all existing ones are busy.
+ * </p>
+ * <p>
+ * Handles which aren't leased are closed after {@link Vfs#getArchiveIdleTimeout()}
+ * milliseconds, or earlier when more than {@link Vfs#getMaxOpenArchives()}
+ * handles are open. Shared file channels reopen the file when the
+ * interruption of one of their users closes them, so the other users keep
+ * reading.
+ * </p>
+ *
+ * @author m
+ */
+final class ArchiveHandles {
+
+    private static final Logger LOG = Logger.getLogger(ArchiveHandles.class.getName());
+
+    private static final Map<Key, List<Handle<?>>> HANDLES = new HashMap<>();
+    private static int openHandles = 0;
+    private static ScheduledExecutorService sweeper = null;
+
+    /**
+     * Opens a handle for an archive file.
+     *
+     * @param <H> the handle type
+     */
+    @FunctionalInterface
+    interface Factory<H extends Closeable> {
+
+        H open(File file) throws IOException;
+
+    }
+
+    /**
+     * A leased handle, which must be closed to return it to the pool.
+     *
+     * @param <H> the handle type
+     */
+    static final class Lease<H extends Closeable> implements Closeable {
+
+        private final Handle<H> handle;
+        private boolean released = false;
+
+        private Lease(Handle<H> handle) {
+            this.handle = handle;
+        }
+
+        H get() {
+            return handle.handle;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+
+            release(handle);
+        }
+
+    }
+
+    private static final class Key {
+
+        final String kind;
+        final String path;
+        final long length;
+        final long modified;
+
+        Key(String kind, File file) {
+            this.kind = kind;
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.modified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            var k = (Key) obj;
+
+            return kind.equals(k.kind) && path.equals(k.path) && length == k.length && modified == k.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, path, length, modified);
+        }
+
+    }
+
+    private static final class Handle<H extends Closeable> {
+
+        final Key key;
+        final H handle;
+        final boolean shared;
+        int leases = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        Handle(Key key, H handle, boolean shared) {
+            this.key = key;
+            this.handle = handle;
+            this.shared = shared;
+        }
+
+    }
+
+    /**
+     * Leases a shared read-only channel of a local file, which isn't closed
+     * by the interruption of a thread using it.
+     *
+     * @param file the file
+     * @return the lease
+     * @throws IOException if the file can't be opened
+     */
+    static Lease<FileChannel> channel(File file) throws IOException {
+        return acquire("channel", file, true, f -> new ReopeningFileChannel(f.toPath()));
+    }
+
+    /**
+     * Leases a handle of an archive file, opening a new one if necessary.
+     *
+     * @param <H>     the handle type
+     * @param kind    the kind of handle, distinguishing handle types of the same file
+     * @param file    the archive file
+     * @param shared  whether the handle may be leased by several users at once
+     * @param factory opens a new handle
+     * @return the lease
+     * @throws IOException if a new handle can't be opened
+     */
+    @SuppressWarnings("unchecked")
+    static <H extends Closeable> Lease<H> acquire(String kind, File file, boolean shared, Factory<H> factory) throws IOException {
+        var key = new Key(kind, file);
+
+        synchronized (ArchiveHandles.class) {
+            var handles = HANDLES.get(key);
+
+            if (handles != null) {
+                for (var h : handles) {
+                    if (h.shared || h.leases == 0) {
+                        h.leases++;
+                        return new Lease<>((Handle<H>) h);
+                    }
+                }
+            }
+        }
+
+        var handle = new Handle<>(key, factory.open(file), shared);
+        handle.leases = 1;
+
+        List<Handle<?>> evicted;
+
+        synchronized (ArchiveHandles.class) {
+            HANDLES.computeIfAbsent(key, k -> new ArrayList<>()).add(handle);
+            openHandles++;
+            evicted = evict(Vfs.getMaxOpenArchives(), Long.MAX_VALUE);
+            scheduleSweeper();
+        }
+
+        close(evicted);
+
+        return new Lease<>(handle);
+    }
+
+    private static void release(Handle<?> handle) {
+        List<Handle<?>> evicted;
+
+        synchronized (ArchiveHandles.class) {
+            handle.leases--;
+            handle.lastUsed = System.currentTimeMillis();
+            evicted = evict(Vfs.getMaxOpenArchives(), Vfs.getArchiveIdleTimeout());
+        }
+
+        close(evicted);
+    }
+
+    /**
+     * Closes all handles which aren't currently leased.
+     */
+    static void closeIdle() {
+        List<Handle<?>> evicted;
+
+        synchronized (ArchiveHandles.class) {
+            evicted = evict(0, 0);
+        }
+
+        close(evicted);
+    }
+
+    /**
+     * Removes idle handles from the pool, least recently used first, until
+     * no more than {@code maxOpen} handles are open and no idle handle is
+     * older than {@code idleTimeout} milliseconds.
+     *
+     * @return the removed handles, which must be closed without holding the lock
+     */
+    private static List<Handle<?>> evict(int maxOpen, long idleTimeout) {
+        var now = System.currentTimeMillis();
+        var evicted = new ArrayList<Handle<?>>();
+
+        while (true) {
+            Handle<?> lru = null;
+
+            for (var handles : HANDLES.values()) {
+                for (var h : handles) {
+                    if (h.leases == 0 && (lru == null || h.lastUsed < lru.lastUsed)) {
+                        lru = h;
+                    }
+                }
+            }
+
+            if (lru == null || (openHandles <= maxOpen && now - lru.lastUsed < idleTimeout)) {
+                return evicted;
+            }
+
+            remove(lru);
+            evicted.add(lru);
+        }
+    }
+
+    private static void remove(Handle<?> handle) {
+        var handles = HANDLES.get(handle.key);
+        handles.remove(handle);
+
+        if (handles.isEmpty()) {
+            HANDLES.remove(handle.key);
+        }
+
+        openHandles--;
+    }
+
+    private static void close(List<Handle<?>> handles) {
+        for (var h : handles) {
+            try {
+                h.handle.close();
+            } catch (IOException ex) {
+                LOG.log(WARNING, "Error closing " + h.key.path, ex);
+            }
+        }
+    }
+
+    private static void scheduleSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+
+        sweeper = newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "vfs-archive-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+
+        var period = Math.max(1000, Vfs.getArchiveIdleTimeout() / 2);
+
+        sweeper.scheduleWithFixedDelay(() -> {
+            List<Handle<?>> evicted;
+
+            synchronized (ArchiveHandles.class) {
+                evicted = evict(Vfs.getMaxOpenArchives(), Vfs.getArchiveIdleTimeout());
+            }
+
+            close(evicted);
+        }, period, period, MILLISECONDS);
+    }
+
+    private ArchiveHandles() {
+    }
+
+}
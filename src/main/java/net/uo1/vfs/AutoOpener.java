@@ -21,6 +21,7 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 
 /**
  *
@@ -41,6 +42,78 @@ class AutoOpener implements Callable<InputStream> {
         return open();
     }
 
+    /**
+     * Checks whether the file name denotes a single-file compressor format.
+     *
+     * @param filename the file name
+     * @return {@code true} for .gz, .bz2 and .zst files
+     */
+    static boolean isCompressed(String filename) {
+        return filename.endsWith(".gz") || filename.endsWith(".bz2") || filename.endsWith(".zst");
+    }
+
+    /**
+     * Wraps a compressed stream with the decompressor implied by the file name.
+     *
+     * @param filename the compressed file name
+     * @param in       the compressed stream
+     * @return a stream of uncompressed data
+     * @throws IOException              if the decompressor can't be initialized
+     * @throws IllegalArgumentException if the file name doesn't denote a compressor format
+     */
+    static InputStream decompress(String filename, InputStream in) throws IOException {
+        if (filename.endsWith(".gz")) {
+            return new GZIPInputStream(in);
+        }
+
+        if (filename.endsWith(".bz2")) {
+            return new BZip2CompressorInputStream(in);
+        }
+
+        if (filename.endsWith(".zst")) {
+            return new ZstdCompressorInputStream(in);
+        }
+
+        throw new IllegalArgumentException(filename);
+    }
+
+    /**
+     * Checks whether the file name denotes a plain or compressed tar archive.
+     *
+     * @param filename the file name
+     * @return {@code true} for .tar, .tgz, .tar.gz, .tbz2, .tar.bz2, .tzst and .tar.zst files
+     */
+    static boolean isTar(String filename) {
+        return filename.endsWith(".tar")
+                || filename.endsWith(".tgz") || filename.endsWith(".tar.gz")
+                || filename.endsWith(".tbz2") || filename.endsWith(".tar.bz2")
+                || filename.endsWith(".tzst") || filename.endsWith(".tar.zst");
+    }
+
+    /**
+     * Wraps a tar archive stream with the decompressor implied by the file name.
+     *
+     * @param filename the tar archive file name
+     * @param in       the raw archive stream
+     * @return a stream of uncompressed tar data
+     * @throws IOException if the decompressor can't be initialized
+     */
+    static InputStream openTar(String filename, InputStream in) throws IOException {
+        if (filename.endsWith(".tgz") || filename.endsWith(".tar.gz")) {
+            return new GZIPInputStream(in);
+        }
+
+        if (filename.endsWith(".tbz2") || filename.endsWith(".tar.bz2")) {
+            return new BZip2CompressorInputStream(in);
+        }
+
+        if (filename.endsWith(".tzst") || filename.endsWith(".tar.zst")) {
+            return new ZstdCompressorInputStream(in);
+        }
+
+        return in;
+    }
+
     InputStream openWrappedStream(InputStream in, String filename, String[] internal) throws IOException {
         if (internal.length == 0) {
             return in;
@@ -94,8 +167,8 @@ class AutoOpener implements Callable<InputStream> {
             }
         }
 
-        if (filename.endsWith(".tar") || filename.endsWith(".tgz")) {
-            var zis = new TarArchiveInputStream(filename.endsWith(".tgz") ? new GZIPInputStream(in) : in);
+        if (isTar(filename)) {
+            var zis = new TarArchiveInputStream(openTar(filename, in));
 
             try {
                 TarArchiveEntry entry, lastEntry = null;
@@ -131,6 +204,14 @@ class AutoOpener implements Callable<InputStream> {
         InputStream in;
         String filename;
 
+        if (file.archived.length > 0) {
+            in = openIndexed();
+
+            if (in != null) {
+                return openWrappedStream(in, file.archived[0], shift(file.archived));
+            }
+        }
+
         if (file.file instanceof byte[]) {
             in = new ByteArrayInputStream((byte[]) file.file);
             filename = "file";
@@ -160,4 +241,58 @@ class AutoOpener implements Callable<InputStream> {
         return openWrappedStream(in, filename, file.archived);
     }
 
+    /**
+     * Opens the outermost archive entry directly if the archive is a local
+     * RAR file or a seekable ZIP, whose central directory locates the entry.
+     * Remote ZIPs are seekable if the URL opener provides a channel.
+     *
+     * @return the entry's stream, or {@code null} if the archive can't be accessed randomly
+     * @throws IOException if the entry doesn't exist or can't be opened
+     */
+    private InputStream openIndexed() throws IOException {
+        if (file.file instanceof File && ((File) file.file).getName().endsWith(".zip")) {
+            return ZipIndex.open((File) file.file, file.archived[0]);
+        }
+
+        if (file.file instanceof File && ((File) file.file).getName().endsWith(".rar")) {
+            return RarEntries.open((File) file.file, file.archived[0]);
+        }
+
+        if (file.file instanceof DataUrl && "application/zip".equals(((DataUrl) file.file).getContentType())) {
+            var channel = new SeekableInMemoryByteChannel(((DataUrl) file.file).getContent());
+            var entry = ZipIndex.read(channel).getEntry(file.archived[0]);
+
+            if (entry == null) {
+                throw new FileNotFoundException(file.archived[0] + " in file.zip");
+            }
+
+            return ZipIndex.open(channel, entry, true);
+        }
+
+        if (file.file instanceof URL && ((URL) file.file).getPath().endsWith(".zip")) {
+            var url = (URL) file.file;
+            var channel = Vfs.getUrlOpener().openChannel(url);
+
+            if (channel == null) {
+                return null;
+            }
+
+            try {
+                var key = channel instanceof HttpRangeChannel ? ((HttpRangeChannel) channel).getCacheKey() : null;
+                var entry = ZipIndex.forChannel(key, channel).getEntry(file.archived[0]);
+
+                if (entry == null) {
+                    throw new FileNotFoundException(file.archived[0] + " in " + url);
+                }
+
+                return ZipIndex.open(channel, entry, true);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        return null;
+    }
+
 }
@@ -0,0 +1,125 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Shared pools of read buffers.
+ * <p>
+ * The pools are shared by all threads rather than kept per thread, so they
+ * stay small when scanning with thousands of virtual threads. Buffers are
+ * {@link Vfs#getBufferSize()} bytes long and at most
+ * {@link Vfs#getMaxPooledBuffers()} idle buffers of each kind are kept.
+ * Buffers of a size that is no longer configured are dropped when released.
+ * </p>
+ *
+ * @author m
+ */
+final class BufferPool {
+
+    private static final Pool<byte[]> HEAP = new Pool<>(b -> b.length, byte[]::new);
+    private static final Pool<ByteBuffer> DIRECT = new Pool<>(ByteBuffer::capacity, ByteBuffer::allocateDirect);
+
+    private static final class Pool<B> {
+
+        private final Queue<B> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final ToIntFunction<B> sizeOf;
+        private final IntFunction<B> allocator;
+
+        Pool(ToIntFunction<B> sizeOf, IntFunction<B> allocator) {
+            this.sizeOf = sizeOf;
+            this.allocator = allocator;
+        }
+
+        B acquire() {
+            var size = Vfs.getBufferSize();
+            B buf;
+
+            while ((buf = buffers.poll()) != null) {
+                pooled.decrementAndGet();
+
+                if (sizeOf.applyAsInt(buf) == size) {
+                    return buf;
+                }
+            }
+
+            return allocator.apply(size);
+        }
+
+        void release(B buf) {
+            if (sizeOf.applyAsInt(buf) != Vfs.getBufferSize()) {
+                return;
+            }
+
+            if (pooled.incrementAndGet() > Vfs.getMaxPooledBuffers()) {
+                pooled.decrementAndGet();
+                return;
+            }
+
+            buffers.add(buf);
+        }
+
+        void clear() {
+            while (buffers.poll() != null) {
+                pooled.decrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * Takes a heap buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * @return a buffer of the configured size
+     */
+    static byte[] acquire() {
+        return HEAP.acquire();
+    }
+
+    /**
+     * Returns a heap buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buf the buffer
+     */
+    static void release(byte[] buf) {
+        HEAP.release(buf);
+    }
+
+    /**
+     * Takes a direct buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * @return a cleared direct buffer of the configured capacity
+     */
+    static ByteBuffer acquireDirect() {
+        return DIRECT.acquire().clear();
+    }
+
+    /**
+     * Returns a direct buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buf the buffer
+     */
+    static void release(ByteBuffer buf) {
+        DIRECT.release(buf);
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    static void clear() {
+        HEAP.clear();
+        DIRECT.clear();
+    }
+
+    private BufferPool() {
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A functional interface for processing file content in chunks held in
+ * byte buffers.
+ * <p>
+ * Unlike {@link DataStreamProcessor}, chunks may live outside the heap, so
+ * native code and NIO based consumers can process them without copying.
+ * </p>
+ *
+ * @author m
+ * @see VfsFile#process(ByteBufferProcessor)
+ */
+@FunctionalInterface
+public interface ByteBufferProcessor {
+
+    /**
+     * Processes a chunk of data.
+     * <p>
+     * The chunk lies between the buffer's position and limit. The buffer is
+     * reused for the following chunks, so it must not be retained after
+     * this method returns.
+     * </p>
+     *
+     * @param data the buffer containing the chunk
+     */
+    void process(ByteBuffer data);
+
+}
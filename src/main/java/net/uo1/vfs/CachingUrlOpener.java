@@ -0,0 +1,528 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+
+/**
+ * Caches HTTP resources in a local directory, revalidating them with
+ * conditional requests.
+ * <p>
+ * Responses carrying an {@code ETag} or {@code Last-Modified} header are
+ * written to the cache while they're read. When a cached resource is opened
+ * again, the request carries {@code If-None-Match} and {@code If-Modified-Since},
+ * and a {@code 304 Not Modified} response is served from the cached copy
+ * without downloading the body. Responses marked {@code no-store}, without
+ * validators or larger than the cache are passed through.
+ * </p>
+ * <p>
+ * The cache is limited to {@link #getMaxSize()} bytes, evicting the least
+ * recently used resources first. Its content survives restarts: the
+ * directory is indexed when the opener is created.
+ * </p>
+ * <p>
+ * {@link #openChannel(URL)} returns a channel of the cached file, downloading
+ * the whole resource first if it isn't cached, so archives are read from
+ * the disk through their index.
+ * </p>
+ *
+ * @author m
+ */
+public class CachingUrlOpener implements StreamOpener<URL> {
+
+    private static final Logger LOG = Logger.getLogger(CachingUrlOpener.class.getName());
+
+    private static final String BODY = ".body";
+    private static final String META = ".meta";
+    private static final String TEMP = ".tmp";
+    // archive readers stop before trailing padding and checksums
+    private static final int MAX_DRAINED = 65536;
+
+    private static final class Entry {
+
+        final String key;
+        final String etag;
+        final String lastModified;
+        final long length;
+        long lastUsed;
+
+        Entry(String key, String etag, String lastModified, long length, long lastUsed) {
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lastUsed = lastUsed;
+        }
+
+    }
+
+    private final HttpClientUrlOpener opener;
+    private final File directory;
+    private final long maxSize;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long size = 0;
+
+    /**
+     * Creates a cache in front of a new {@link HttpClientUrlOpener}.
+     *
+     * @param directory the cache directory, created if it doesn't exist
+     * @param maxSize   the maximum total size of cached resources in bytes
+     * @throws IOException if the directory can't be created or read
+     */
+    public CachingUrlOpener(File directory, long maxSize) throws IOException {
+        this(new HttpClientUrlOpener(), directory, maxSize);
+    }
+
+    /**
+     * Creates a cache in front of the specified opener.
+     *
+     * @param opener    the opener sending the requests
+     * @param directory the cache directory, created if it doesn't exist
+     * @param maxSize   the maximum total size of cached resources in bytes
+     * @throws IOException if the directory can't be created or read
+     */
+    public CachingUrlOpener(HttpClientUrlOpener opener, File directory, long maxSize) throws IOException {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        }
+
+        this.opener = opener;
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        Files.createDirectories(directory.toPath());
+        load();
+    }
+
+    /**
+     * Returns the cache directory.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum total size of cached resources.
+     *
+     * @return the size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the total size of cached resources.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Indexes the cached resources, removing incomplete ones.
+     */
+    private void load() throws IOException {
+        var files = directory.listFiles();
+
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+
+        for (var f : files) {
+            var name = f.getName();
+
+            if (name.endsWith(TEMP)) {
+                f.delete();
+            }
+
+            if (!name.endsWith(META)) {
+                continue;
+            }
+
+            var key = name.substring(0, name.length() - META.length());
+            var body = new File(directory, key + BODY);
+            var meta = new Properties();
+
+            try ( var in = new FileInputStream(f)) {
+                meta.load(in);
+
+                var length = Long.parseLong(meta.getProperty("length"));
+
+                if (body.length() == length) {
+                    entries.put(key, new Entry(key, meta.getProperty("etag"), meta.getProperty("lastModified"), length, f.lastModified()));
+                    size += length;
+                    continue;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.log(WARNING, "Invalid cache entry " + f, ex);
+            }
+
+            f.delete();
+            body.delete();
+        }
+
+        evict();
+    }
+
+    @Override
+    public InputStream open(URL url) throws IOException, FileNotFoundException {
+        var key = key(url);
+        var entry = get(key);
+        var response = opener.send(url, request(url, entry));
+
+        if (response.statusCode() == 304 && entry != null) {
+            response.body().close();
+
+            try {
+                var in = new FileInputStream(body(key));
+                touch(entry);
+                return in;
+            } catch (FileNotFoundException ex) {
+                remove(entry);
+                return open(url);
+            }
+        }
+
+        if (!isCacheable(response)) {
+            return HttpClientUrlOpener.body(response, url);
+        }
+
+        return new CachingInputStream(key, response);
+    }
+
+    @Override
+    public SeekableByteChannel openChannel(URL url) throws IOException, FileNotFoundException {
+        var key = key(url);
+        var entry = get(key);
+        var response = opener.send(url, request(url, entry));
+
+        if (response.statusCode() == 304 && entry != null) {
+            response.body().close();
+
+            try {
+                var channel = FileChannel.open(body(key).toPath(), READ);
+                touch(entry);
+                return channel;
+            } catch (NoSuchFileException ex) {
+                remove(entry);
+                return openChannel(url);
+            }
+        }
+
+        if (!isCacheable(response)) {
+            // the resource can't be cached, so it's read through range requests
+            HttpClientUrlOpener.body(response, url).close();
+            return opener.openChannel(url);
+        }
+
+        try ( var in = new CachingInputStream(key, response)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+
+        try {
+            return FileChannel.open(body(key).toPath(), READ);
+        } catch (NoSuchFileException ex) {
+            // evicted right away or not written
+            return opener.openChannel(url);
+        }
+    }
+
+    private HttpRequest request(URL url, Entry entry) throws IOException {
+        var builder = opener.newRequest(url);
+
+        if (entry != null) {
+            if (entry.etag != null) {
+                builder.header("If-None-Match", entry.etag);
+            }
+
+            if (entry.lastModified != null) {
+                builder.header("If-Modified-Since", entry.lastModified);
+            }
+        }
+
+        return builder.GET().build();
+    }
+
+    private boolean isCacheable(HttpResponse<InputStream> response) {
+        if (response.statusCode() != 200) {
+            return false;
+        }
+
+        var headers = response.headers();
+
+        if (headers.firstValue("Cache-Control").orElse("").contains("no-store")) {
+            return false;
+        }
+
+        if (headers.firstValue("ETag").isEmpty() && headers.firstValue("Last-Modified").isEmpty()) {
+            return false;
+        }
+
+        return headers.firstValueAsLong("Content-Length").orElse(0) <= maxSize;
+    }
+
+    private static String key(URL url) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(url.toString().getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private File body(String key) {
+        return new File(directory, key + BODY);
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void touch(Entry entry) {
+        entry.lastUsed = System.currentTimeMillis();
+        new File(directory, entry.key + META).setLastModified(entry.lastUsed);
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            size -= entry.length;
+        }
+
+        new File(directory, entry.key + META).delete();
+        body(entry.key).delete();
+    }
+
+    /**
+     * Moves a completely downloaded resource into the cache.
+     */
+    private synchronized void commit(String key, HttpResponse<?> response, File temp, long length) throws IOException {
+        var meta = new Properties();
+        meta.setProperty("length", String.valueOf(length));
+        response.headers().firstValue("ETag").ifPresent(v -> meta.setProperty("etag", v));
+        response.headers().firstValue("Last-Modified").ifPresent(v -> meta.setProperty("lastModified", v));
+
+        var metaTemp = File.createTempFile(key, TEMP, directory);
+
+        try {
+            try ( var out = new FileOutputStream(metaTemp)) {
+                meta.store(out, response.uri().toString());
+            }
+
+            move(temp, body(key));
+            move(metaTemp, new File(directory, key + META));
+        } finally {
+            metaTemp.delete();
+        }
+
+        var previous = entries.put(key, new Entry(key, meta.getProperty("etag"), meta.getProperty("lastModified"), length, System.currentTimeMillis()));
+
+        if (previous != null) {
+            size -= previous.length;
+        }
+
+        size += length;
+
+        evict();
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Removes least recently used resources until the cache fits its size limit.
+     */
+    private synchronized void evict() {
+        if (size <= maxSize) {
+            return;
+        }
+
+        var lru = new ArrayList<>(entries.values());
+        lru.sort(Comparator.comparingLong(e -> e.lastUsed));
+
+        for (var e : lru) {
+            if (size <= maxSize) {
+                break;
+            }
+
+            remove(e);
+        }
+    }
+
+    /**
+     * Passes a response body through while writing it to a temporary file,
+     * which is moved into the cache once the body has been read completely.
+     * <p>
+     * Readers often stop at the last byte they need and close the stream
+     * without reading its end. Closing the stream reads up to
+     * {@link #MAX_DRAINED} remaining bytes, so such a body is still cached
+     * unless a large part of it is left unread.
+     * </p>
+     */
+    private class CachingInputStream extends FilterInputStream {
+
+        private final String key;
+        private final HttpResponse<InputStream> response;
+        private final long expected;
+        private File temp;
+        private OutputStream out;
+        private long count = 0;
+
+        CachingInputStream(String key, HttpResponse<InputStream> response) throws IOException {
+            super(response.body());
+
+            this.key = key;
+            this.response = response;
+            this.expected = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+
+            try {
+                temp = File.createTempFile(key, TEMP, directory);
+                out = new FileOutputStream(temp);
+            } catch (IOException ex) {
+                response.body().close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var nr = super.read(b, off, len);
+
+            if (out == null) {
+                return nr;
+            }
+
+            if (nr == -1) {
+                finish();
+                return nr;
+            }
+
+            count += nr;
+
+            try {
+                if (count > maxSize) {
+                    throw new IOException("Larger than the cache");
+                }
+
+                out.write(b, off, nr);
+            } catch (IOException ex) {
+                // the caller gets the data anyway
+                LOG.log(WARNING, "Not caching " + response.uri(), ex);
+                abandon();
+            }
+
+            return nr;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must still be written to the cache
+            var buf = new byte[(int) Math.min(n, 8192)];
+            var nr = read(buf, 0, buf.length);
+            return Math.max(nr, 0);
+        }
+
+        private void finish() {
+            try {
+                out.close();
+                out = null;
+
+                if (expected == -1 || count == expected) {
+                    commit(key, response, temp, count);
+                }
+            } catch (IOException ex) {
+                LOG.log(WARNING, "Error caching " + response.uri(), ex);
+            } finally {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // the file is deleted anyway
+                }
+                out = null;
+            }
+
+            if (temp != null) {
+                temp.delete();
+                temp = null;
+            }
+        }
+
+        private void drain() {
+            var buf = new byte[8192];
+            var limit = count + MAX_DRAINED;
+
+            try {
+                while (out != null && count <= limit && read(buf, 0, buf.length) != -1) {
+                    // written to the cache by read
+                }
+            } catch (IOException ex) {
+                LOG.log(WARNING, "Not caching " + response.uri(), ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (out != null && (expected == -1 || expected - count <= MAX_DRAINED)) {
+                    drain();
+                }
+            } finally {
+                try {
+                    super.close();
+                } finally {
+                    abandon();
+                }
+            }
+        }
+
+    }
+
+}
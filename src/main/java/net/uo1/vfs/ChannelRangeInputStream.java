@@ -0,0 +1,104 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * An input stream reading a range of bytes from a seekable channel.
+ * <p>
+ * Reads don't depend on the channel's own position, so several streams may
+ * share the same channel. File channels are read with positional reads,
+ * other channels are locked for the duration of each read.
+ * </p>
+ *
+ * @author m
+ */
+class ChannelRangeInputStream extends InputStream {
+
+    private final SeekableByteChannel channel;
+    private final long end;
+    private final boolean closeChannel;
+    private long position;
+
+    /**
+     * Creates a stream reading the specified range of the channel.
+     *
+     * @param channel      the channel to read from
+     * @param position     the position of the first byte of the range
+     * @param length       the length of the range
+     * @param closeChannel whether to close the channel when the stream is closed
+     */
+    ChannelRangeInputStream(SeekableByteChannel channel, long position, long length, boolean closeChannel) {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+        this.closeChannel = closeChannel;
+    }
+
+    static int read(SeekableByteChannel channel, ByteBuffer dst, long position) throws IOException {
+        if (channel instanceof FileChannel) {
+            return ((FileChannel) channel).read(dst, position);
+        }
+
+        synchronized (channel) {
+            channel.position(position);
+            return channel.read(dst);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (position >= end) {
+            return -1;
+        }
+
+        var nr = read(channel, ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+
+        if (nr == -1) {
+            throw new EOFException("Unexpected end of channel at " + position);
+        }
+
+        position += nr;
+
+        return nr;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        position = end;
+
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only channel exposing a range of another seekable channel.
+ * <p>
+ * The slice keeps its own position and reads the underlying channel with
+ * positional reads, so any number of slices may share one channel.
+ * </p>
+ *
+ * @author m
+ */
+class ChannelSlice implements SeekableByteChannel {
+
+    private final SeekableByteChannel channel;
+    private final long offset;
+    private final long size;
+    private final Closeable onClose;
+    private long position = 0;
+    private boolean open = true;
+
+    /**
+     * Creates a slice of a channel.
+     *
+     * @param channel the underlying channel
+     * @param offset  the position of the slice's first byte in the channel
+     * @param size    the size of the slice
+     * @param onClose closed when the slice is closed, or {@code null}
+     */
+    ChannelSlice(SeekableByteChannel channel, long offset, long size, Closeable onClose) {
+        this.channel = channel;
+        this.offset = offset;
+        this.size = size;
+        this.onClose = onClose;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        if (position >= size) {
+            return -1;
+        }
+
+        var limit = dst.limit();
+        var max = size - position;
+
+        if (dst.remaining() > max) {
+            dst.limit(dst.position() + (int) max);
+        }
+
+        try {
+            var nr = ChannelRangeInputStream.read(channel, dst, offset + position);
+
+            if (nr > 0) {
+                position += nr;
+            }
+
+            return nr;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position: " + newPosition);
+        }
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+
+            if (onClose != null) {
+                onClose.close();
+            }
+        }
+    }
+
+}
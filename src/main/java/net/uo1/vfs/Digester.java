@@ -0,0 +1,91 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Computes a message digest or a checksum through a common interface.
+ * <p>
+ * {@code CRC32}, {@code CRC32C} and {@code Adler32} are computed with
+ * {@link Checksum} and reported as 4 big-endian bytes, any other name is
+ * looked up with {@link MessageDigest#getInstance(String)}.
+ * </p>
+ *
+ * @author m
+ */
+final class Digester {
+
+    private final MessageDigest md;
+    private final Checksum checksum;
+
+    private Digester(MessageDigest md, Checksum checksum) {
+        this.md = md;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Creates a digester for an algorithm.
+     *
+     * @param algorithm the algorithm name
+     * @return the digester
+     * @throws IllegalArgumentException if the algorithm isn't supported
+     */
+    static Digester of(String algorithm) {
+        switch (algorithm.toUpperCase()) {
+            case "CRC32":
+                return new Digester(null, new CRC32());
+            case "CRC32C":
+                return new Digester(null, new CRC32C());
+            case "ADLER32":
+                return new Digester(null, new Adler32());
+            default:
+                try {
+                    return new Digester(MessageDigest.getInstance(algorithm), null);
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, ex);
+                }
+        }
+    }
+
+    /**
+     * Updates the digest with the remaining bytes of a buffer, leaving the
+     * buffer's position unchanged so it can be fed to other digesters.
+     *
+     * @param data the data
+     */
+    void update(ByteBuffer data) {
+        var position = data.position();
+
+        if (md != null) {
+            md.update(data);
+        } else {
+            checksum.update(data);
+        }
+
+        data.position(position);
+    }
+
+    /**
+     * Completes the computation.
+     *
+     * @return the digest
+     */
+    byte[] digest() {
+        if (md != null) {
+            return md.digest();
+        }
+
+        var value = checksum.getValue();
+
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+}
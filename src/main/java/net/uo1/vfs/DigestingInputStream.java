@@ -0,0 +1,117 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A stream feeding every byte read through it to several digesters.
+ * <p>
+ * Skipped bytes are read and digested too, so the digests always cover
+ * the content up to the stream's position.
+ * </p>
+ *
+ * @author m
+ */
+final class DigestingInputStream extends FilterInputStream {
+
+    private final Map<String, Digester> digesters = new LinkedHashMap<>();
+
+    /**
+     * Creates a stream digesting the data read from another stream.
+     *
+     * @param in         the stream to read from
+     * @param algorithms the algorithm names, as accepted by {@link Digester#of(String)}
+     */
+    DigestingInputStream(InputStream in, String... algorithms) {
+        super(in);
+
+        for (var algorithm : algorithms) {
+            digesters.put(algorithm, Digester.of(algorithm));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = in.read();
+
+        if (b != -1) {
+            update(new byte[]{(byte) b}, 0, 1);
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var nr = in.read(b, off, len);
+
+        if (nr > 0) {
+            update(b, off, nr);
+        }
+
+        return nr;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var buf = new byte[(int) Math.min(n, 8192)];
+        var skipped = 0L;
+
+        while (skipped < n) {
+            var nr = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+
+            if (nr == -1) {
+                break;
+            }
+
+            skipped += nr;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void update(byte[] b, int off, int len) {
+        var data = ByteBuffer.wrap(b, off, len);
+
+        for (var digester : digesters.values()) {
+            digester.update(data);
+        }
+    }
+
+    /**
+     * Completes the digests of the data read so far.
+     *
+     * @return the digests by algorithm name, in the order requested
+     */
+    Map<String, byte[]> digests() {
+        var result = new LinkedHashMap<String, byte[]>();
+
+        for (var e : digesters.entrySet()) {
+            result.put(e.getKey(), e.getValue().digest());
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,709 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Opens HTTP and HTTPS URLs through a shared {@link HttpClient}.
+ * <p>
+ * The client keeps connections alive and reuses them for subsequent requests
+ * to the same host, so reading many small remote files doesn't pay for a
+ * TCP and TLS handshake each. HTTP/2 is negotiated when the server supports
+ * it, multiplexing concurrent requests over a single connection. Redirects
+ * are followed, except from HTTPS to HTTP.
+ * </p>
+ * <p>
+ * The default client is created on first use with the connect timeout from
+ * {@link Vfs#getDefaultHttpTimeout()}. The size and keep-alive time of its
+ * connection pool are configured through the {@code jdk.httpclient.connectionPoolSize}
+ * and {@code jdk.httpclient.keepalive.timeout} system properties, while a
+ * client configured otherwise may be passed to the constructor.
+ * </p>
+ * <p>
+ * Reading a response body fails with {@link java.net.http.HttpTimeoutException}
+ * when no data arrives for {@link #getReadTimeout()} milliseconds, which
+ * also releases the connection and, if the download is resumable, makes it
+ * reconnect.
+ * </p>
+ * <p>
+ * The number of responses read from a single host at once may be limited
+ * by {@link #setMaxConnectionsPerHost(int)}. A permit is held from sending
+ * the request until the response body is closed, and requests waiting for a
+ * permit are queued without blocking the calling thread.
+ * </p>
+ *
+ * @author m
+ */
+public class HttpClientUrlOpener implements StreamOpener<URL> {
+
+    private volatile HttpClient client;
+    private volatile int maxConnectionsPerHost = 0;
+    private volatile int downloadSegments = 1;
+    private volatile int segmentSize = 8 << 20;
+    private volatile int maxRetries = 5;
+    private volatile long retryDelay = 1000;
+    private volatile long readTimeout = -1;
+    private final Map<String, HostLimit> hostLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Thrown when a range request is answered with other data than requested,
+     * which retrying doesn't fix.
+     */
+    static class RangeNotReturnedException extends IOException {
+
+        RangeNotReturnedException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Counts the open responses of a host, queueing requests above the limit
+     * without blocking the threads sending them.
+     */
+    private static final class HostLimit {
+
+        private final int max;
+        private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private int open = 0;
+
+        HostLimit(int max) {
+            this.max = max;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (open < max) {
+                open++;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            var permit = new CompletableFuture<Void>();
+            waiting.add(permit);
+            return permit;
+        }
+
+        void release() {
+            CompletableFuture<Void> next;
+
+            synchronized (this) {
+                next = waiting.poll();
+
+                if (next == null) {
+                    open--;
+                    return;
+                }
+            }
+
+            // the permit passes to the next request, which is sent outside the lock
+            next.complete(null);
+        }
+
+    }
+
+    /**
+     * Creates an opener using a client built on first use.
+     */
+    public HttpClientUrlOpener() {
+        this(null);
+    }
+
+    /**
+     * Creates an opener using the specified client.
+     *
+     * @param client the client, or {@code null} to build one on first use
+     */
+    public HttpClientUrlOpener(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Returns the client used to send requests.
+     *
+     * @return the client
+     */
+    public HttpClient getClient() {
+        var c = client;
+
+        if (c == null) {
+            synchronized (this) {
+                c = client;
+
+                if (c == null) {
+                    var builder = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .followRedirects(HttpClient.Redirect.NORMAL);
+
+                    if (Vfs.getDefaultHttpTimeout() > 0) {
+                        builder.connectTimeout(Duration.ofMillis(Vfs.getDefaultHttpTimeout()));
+                    }
+
+                    client = c = builder.build();
+                }
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Returns the maximum number of responses read from a single host at once.
+     *
+     * @return the limit, or {@code 0} if unlimited
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of responses read from a single host at once.
+     * <p>
+     * Requests exceeding the limit wait until another response from the same
+     * host is closed. Changing the limit doesn't affect requests already
+     * sent or waiting.
+     * </p>
+     *
+     * @param maxConnectionsPerHost the limit, or {@code 0} for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost: " + maxConnectionsPerHost);
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        hostLimits.clear();
+    }
+
+    /**
+     * Returns the number of ranges of a resource downloaded at once.
+     *
+     * @return the number of concurrent segments, {@code 1} if resources are downloaded by a single request
+     */
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    /**
+     * Sets the number of ranges of a resource downloaded at once.
+     * <p>
+     * With more than one segment, {@link #open(URL)} requests the first
+     * {@link #getSegmentSize()} bytes of the resource. If the server returns
+     * a partial response, the following segments are downloaded concurrently
+     * by separate range requests into a ring of buffers and the stream
+     * returns them in order, so a large resource is downloaded at the
+     * combined throughput of several connections. Resources no larger than
+     * a segment and servers not supporting ranges cost no additional request.
+     * </p>
+     * <p>
+     * Up to {@code segments + 1} buffers of the segment size are allocated
+     * by every open stream.
+     * </p>
+     *
+     * @param segments the number of concurrent segments, {@code 1} to disable segmented downloads
+     * @throws IllegalArgumentException if the number isn't positive
+     */
+    public void setDownloadSegments(int segments) {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("segments: " + segments);
+        }
+        this.downloadSegments = segments;
+    }
+
+    /**
+     * Returns the size of the ranges of segmented downloads.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of the ranges of segmented downloads.
+     *
+     * @param segmentSize the segment size in bytes
+     * @throws IllegalArgumentException if the size isn't positive
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the number of times a failed download is resumed in a row.
+     *
+     * @return the maximum number of consecutive retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed download is resumed in a row.
+     * <p>
+     * When a response body fails while it's read, the stream requests the
+     * rest of the resource with a range request conditional on its ETag or
+     * modification time and continues from where the failure occurred, so
+     * the reader doesn't notice the interruption. Responses without a
+     * validator, or from servers not advertising {@code Accept-Ranges: bytes},
+     * can't be resumed. The attempts back off exponentially from
+     * {@link #getRetryDelay()}, and the count is reset whenever data is read.
+     * </p>
+     *
+     * @param maxRetries the maximum number of consecutive retries, {@code 0} to disable resuming
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the delay before the first attempt to resume a failed download.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay before the first attempt to resume a failed download.
+     * The delay doubles with every consecutive attempt, up to a minute.
+     *
+     * @param retryDelay the delay in milliseconds
+     * @throws IllegalArgumentException if the delay is negative
+     */
+    public void setRetryDelay(long retryDelay) {
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("retryDelay: " + retryDelay);
+        }
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Returns the maximum time reading a response body waits for data.
+     *
+     * @return the timeout in milliseconds, or {@code 0} if reads never time out
+     */
+    public long getReadTimeout() {
+        var timeout = readTimeout;
+
+        return timeout == -1 ? Math.max(0, Vfs.getDefaultHttpTimeout()) : timeout;
+    }
+
+    /**
+     * Sets the maximum time reading a response body waits for data.
+     * <p>
+     * The timeout defaults to {@link Vfs#getDefaultHttpTimeout()}. It applies
+     * to each read separately, so slowly arriving bodies aren't limited as
+     * long as data keeps coming. Changing the timeout doesn't affect
+     * responses already received.
+     * </p>
+     *
+     * @param readTimeout the timeout in milliseconds, {@code 0} to wait forever,
+     *                    or {@code -1} to use the default
+     * @throws IllegalArgumentException if the timeout is less than {@code -1}
+     */
+    public void setReadTimeout(long readTimeout) {
+        if (readTimeout < -1) {
+            throw new IllegalArgumentException("readTimeout: " + readTimeout);
+        }
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Creates a GET request with the default user agent and timeout.
+     *
+     * @param url the URL
+     * @return the request builder
+     * @throws IOException if the URL isn't a valid URI
+     */
+    protected HttpRequest.Builder newRequest(URL url) throws IOException {
+        HttpRequest.Builder builder;
+
+        try {
+            builder = HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            throw new IOException("Invalid URL: " + url, ex);
+        }
+
+        if (Vfs.getDefaultUserAgent() != null) {
+            builder.header("User-Agent", Vfs.getDefaultUserAgent());
+        }
+
+        if (Vfs.getDefaultHttpTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(Vfs.getDefaultHttpTimeout()));
+        }
+
+        return builder;
+    }
+
+    @Override
+    public InputStream open(URL url) throws IOException, FileNotFoundException {
+        var segments = downloadSegments;
+
+        if (segments > 1) {
+            return openSegmented(url, segments, segmentSize);
+        }
+
+        var response = send(url, newRequest(url).GET().build());
+        var in = body(response, url);
+
+        if (!"bytes".equals(response.headers().firstValue("Accept-Ranges").orElse(null))) {
+            return in;
+        }
+
+        return resumable(url, validator(response), 0, response.headers().firstValueAsLong("Content-Length").orElse(-1), in);
+    }
+
+    /**
+     * Makes a stream of a resource resume after failures, if enabled.
+     *
+     * @param url       the URL
+     * @param validator the resource's strong ETag or modification time, or
+     *                  {@code null} if the stream can't be resumed safely
+     * @param position  the position of the stream's first byte within the resource
+     * @param end       the position after the stream's last byte, or {@code -1} if unknown
+     * @param in        the stream
+     * @return the resumable stream, or the stream itself
+     */
+    InputStream resumable(URL url, String validator, long position, long end, InputStream in) {
+        if (maxRetries == 0 || validator == null) {
+            return in;
+        }
+
+        return new ResumableHttpInputStream(this, url, validator, position, end, in);
+    }
+
+    private InputStream openSegmented(URL url, int segments, int size) throws IOException {
+        var response = send(url, newRequest(url).header("Range", "bytes=0-" + (size - 1)).GET().build());
+
+        if (response.statusCode() != 206) {
+            return body(response, url);
+        }
+
+        var range = contentRange(response);
+
+        if (range == null || range[0] != 0 || range[2] < 0) {
+            response.body().close();
+            return body(send(url, newRequest(url).GET().build()), url);
+        }
+
+        var validator = validator(response);
+        var first = resumable(url, validator, 0, range[1] + 1, response.body());
+
+        if (range[1] + 1 >= range[2]) {
+            return first;
+        }
+
+        return new SegmentedInputStream(this, url, validator, range[2], first, range[1] + 1, size, segments);
+    }
+
+    /**
+     * Opens a channel reading the resource through HTTP range requests.
+     * <p>
+     * The channel caches the blocks it reads and reads ahead while it's read
+     * sequentially. The last block of the resource, where archives keep
+     * their index, is fetched while probing whether the server supports
+     * range requests. Subsequent requests are conditional on the resource's
+     * ETag or modification time, so a resource which changes while the
+     * channel is open causes an {@link IOException} rather than mixed data.
+     * </p>
+     *
+     * @param url the URL
+     * @return the channel, or {@code null} if the server doesn't support range requests
+     * @throws IOException           if the request fails
+     * @throws FileNotFoundException if the resource doesn't exist
+     */
+    @Override
+    public SeekableByteChannel openChannel(URL url) throws IOException, FileNotFoundException {
+        var response = send(url, newRequest(url).header("Range", "bytes=-" + HttpRangeChannel.BLOCK_SIZE).GET().build());
+
+        try (var in = response.body()) {
+            var status = response.statusCode();
+
+            if (status == 200 || status == 416) {
+                // ranges aren't supported, or the resource is empty
+                return null;
+            }
+
+            if (status != 206) {
+                body(response, url);
+            }
+
+            var range = contentRange(response);
+
+            if (range == null || range[2] < 0) {
+                return null;
+            }
+
+            var tail = in.readNBytes((int) (range[1] - range[0] + 1));
+
+            if (tail.length != range[1] - range[0] + 1) {
+                throw new EOFException("Truncated response from " + url);
+            }
+
+            return new HttpRangeChannel(this, url, range[2], validator(response), range[0], tail);
+        }
+    }
+
+    /**
+     * Opens a range of a resource.
+     *
+     * @param url       the URL
+     * @param validator the resource's strong ETag or modification time
+     *                  the range must belong to, or {@code null}
+     * @param offset    the position of the first byte
+     * @param length    the number of bytes, or {@code -1} to read to the end
+     * @return a stream of the range
+     * @throws RangeNotReturnedException if the server doesn't return the
+     *                                   requested range or if the resource has changed
+     * @throws IOException                if the request fails
+     */
+    InputStream openRange(URL url, String validator, long offset, long length) throws IOException {
+        var builder = newRequest(url).header("Range", "bytes=" + offset + "-" + (length < 0 ? "" : String.valueOf(offset + length - 1)));
+
+        if (validator != null) {
+            builder.header("If-Range", validator);
+        }
+
+        var response = send(url, builder.GET().build());
+
+        if (response.statusCode() == 206) {
+            var range = contentRange(response);
+
+            if (range != null && range[0] == offset) {
+                return response.body();
+            }
+        }
+
+        response.body().close();
+
+        if (response.statusCode() == 200 || response.statusCode() == 206) {
+            throw new RangeNotReturnedException("Range " + offset + "-" + (length < 0 ? "" : offset + length - 1) + " of " + url + " not returned, the resource may have changed");
+        }
+
+        body(response, url);
+        throw new IOException("Invalid response code " + response.statusCode() + " received for " + url);
+    }
+
+    /**
+     * Parses the {@code Content-Range} header of a partial response.
+     *
+     * @param response the response
+     * @return the first and last position and the total size, which is
+     *         {@code -1} if unknown, or {@code null} if the header is missing or invalid
+     */
+    static long[] contentRange(HttpResponse<?> response) {
+        var header = response.headers().firstValue("Content-Range").orElse(null);
+
+        if (header == null || !header.startsWith("bytes ")) {
+            return null;
+        }
+
+        var slash = header.indexOf('/');
+        var dash = header.indexOf('-');
+
+        if (slash == -1 || dash == -1 || dash > slash) {
+            return null;
+        }
+
+        try {
+            var total = header.substring(slash + 1).trim();
+
+            return new long[]{
+                Long.parseLong(header.substring(6, dash).trim()),
+                Long.parseLong(header.substring(dash + 1, slash).trim()),
+                "*".equals(total) ? -1 : Long.parseLong(total)
+            };
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the validator identifying the version of a resource, usable in {@code If-Range}.
+     *
+     * @param response the response
+     * @return the strong ETag, else the modification time, or {@code null}
+     */
+    static String validator(HttpResponse<?> response) {
+        var etag = response.headers().firstValue("ETag").orElse(null);
+
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+
+        return response.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    /**
+     * Sends a request and waits for the response headers.
+     *
+     * @param url     the requested URL
+     * @param request the request
+     * @return the response, whose body must be closed
+     * @throws IOException if the request fails
+     */
+    HttpResponse<InputStream> send(URL url, HttpRequest request) throws IOException {
+        var future = sendAsync(url, request);
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            // a response arriving later must still release its connection
+            future.thenAccept(r -> IOUtils.closeQuietly(r.body()));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + url);
+        } catch (ExecutionException ex) {
+            throw unwrap(ex.getCause(), url);
+        }
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     * <p>
+     * The returned future completes once the response headers have been
+     * received, with a stream of the body which is read as it arrives. If the
+     * host's connection limit has been reached, the request is sent once
+     * another response from the host is closed.
+     * </p>
+     *
+     * @param url the URL
+     * @return the future body stream, completed exceptionally with
+     *         {@link FileNotFoundException} if the resource doesn't exist
+     *         or {@link IOException} on other errors
+     */
+    public CompletableFuture<InputStream> openAsync(URL url) {
+        HttpRequest request;
+
+        try {
+            request = newRequest(url).GET().build();
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return sendAsync(url, request).thenApply(r -> {
+            try {
+                return body(r, url);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Sends a request within the host's connection limit.
+     * <p>
+     * The permit is released when the response body is closed, when reading
+     * it times out or when the request fails.
+     * </p>
+     *
+     * @param url     the requested URL, identifying the host
+     * @param request the request
+     * @return the future response
+     */
+    CompletableFuture<HttpResponse<InputStream>> sendAsync(URL url, HttpRequest request) {
+        var limit = limit(url);
+        // streams may be closed more than once, but the permit must only be released once
+        var released = new AtomicBoolean(limit == null);
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        };
+
+        var timeout = getReadTimeout();
+        var permit = limit == null ? CompletableFuture.<Void>completedFuture(null) : limit.acquire();
+
+        return permit.thenCompose(v -> getClient().sendAsync(request, info -> BodySubscribers.mapping(BodyHandlers.ofInputStream().apply(info), in -> {
+            InputStream body = new InputStreamWithCloseHook(in, release);
+            return timeout > 0 ? new ReadTimeoutInputStream(body, url, timeout) : body;
+        })))
+                .whenComplete((r, ex) -> {
+                    if (ex != null) {
+                        release.run();
+                    }
+                });
+    }
+
+    /**
+     * Checks the status of a response and returns its body.
+     *
+     * @param response the response
+     * @param url      the requested URL
+     * @return the body stream
+     * @throws IOException if the status isn't 200
+     */
+    static InputStream body(HttpResponse<InputStream> response, URL url) throws IOException {
+        var status = response.statusCode();
+
+        if (status == 200) {
+            return response.body();
+        }
+
+        response.body().close();
+
+        if (status == 404 || status == 410) {
+            throw new FileNotFoundException(url.toString());
+        }
+
+        throw new IOException("Invalid response code " + status + " received for " + url);
+    }
+
+    private HostLimit limit(URL url) {
+        var max = maxConnectionsPerHost;
+
+        if (max == 0) {
+            return null;
+        }
+
+        return hostLimits.computeIfAbsent(url.getHost() + ":" + url.getPort(), h -> new HostLimit(max));
+    }
+
+    static IOException unwrap(Throwable ex, URL url) {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+
+        if (ex instanceof UncheckedIOException) {
+            return ((UncheckedIOException) ex).getCause();
+        }
+
+        if (ex instanceof IOException) {
+            return (IOException) ex;
+        }
+
+        return new IOException("Error requesting " + url, ex);
+    }
+
+}
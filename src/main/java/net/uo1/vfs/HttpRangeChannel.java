@@ -0,0 +1,198 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only channel over a remote resource, read through HTTP range requests.
+ * <p>
+ * The resource is read in blocks of {@link #BLOCK_SIZE} bytes which are kept
+ * in a small LRU cache, so the scattered small reads of an archive's index
+ * are served by a few requests. While the channel is read sequentially, each
+ * request fetches twice as many blocks as the previous one, up to
+ * {@link #MAX_READAHEAD_BLOCKS}, so reading a large entry doesn't cost a
+ * request per block.
+ * </p>
+ *
+ * @author m
+ */
+class HttpRangeChannel implements SeekableByteChannel {
+
+    static final int BLOCK_SIZE = 65536;
+    static final int MAX_READAHEAD_BLOCKS = 64;
+    private static final int MAX_CACHED_BLOCKS = 2 * MAX_READAHEAD_BLOCKS;
+
+    private final HttpClientUrlOpener opener;
+    private final URL url;
+    private final long size;
+    private final String validator;
+    private final Map<Long, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+    private long position = 0;
+    private long nextBlock = -1;
+    private int readahead = 1;
+    private boolean open = true;
+
+    /**
+     * Creates a channel, caching the blocks completely covered by data
+     * which has already been read.
+     *
+     * @param opener    the opener sending the requests
+     * @param url       the URL
+     * @param size      the size of the resource
+     * @param validator the resource's strong ETag or modification time, or {@code null}
+     * @param offset    the position of the data already read
+     * @param data      the data already read
+     */
+    HttpRangeChannel(HttpClientUrlOpener opener, URL url, long size, String validator, long offset, byte[] data) {
+        this.opener = opener;
+        this.url = url;
+        this.size = size;
+        this.validator = validator;
+
+        for (var index = (offset + BLOCK_SIZE - 1) / BLOCK_SIZE; index * BLOCK_SIZE < offset + data.length; index++) {
+            var start = index * BLOCK_SIZE;
+            var end = Math.min(start + BLOCK_SIZE, size);
+
+            if (end > offset + data.length) {
+                break;
+            }
+
+            var block = new byte[(int) (end - start)];
+            System.arraycopy(data, (int) (start - offset), block, 0, block.length);
+            blocks.put(index, block);
+        }
+    }
+
+    /**
+     * Returns a key identifying the version of the resource, or {@code null}
+     * if the server didn't report one.
+     *
+     * @return the URL, size and validator of the resource
+     */
+    String getCacheKey() {
+        return validator == null ? null : url + " " + size + " " + validator;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        if (position >= size) {
+            return -1;
+        }
+
+        var index = position / BLOCK_SIZE;
+        var block = blocks.get(index);
+
+        if (block == null) {
+            readahead = index == nextBlock ? Math.min(readahead * 2, MAX_READAHEAD_BLOCKS) : 1;
+            block = fetch(index, readahead);
+        }
+
+        var offset = (int) (position - index * BLOCK_SIZE);
+        var n = Math.min(dst.remaining(), block.length - offset);
+
+        dst.put(block, offset, n);
+        position += n;
+
+        return n;
+    }
+
+    /**
+     * Fetches consecutive blocks with a single request.
+     *
+     * @return the first block
+     */
+    private byte[] fetch(long index, int count) throws IOException {
+        var start = index * BLOCK_SIZE;
+        var end = Math.min(start + (long) count * BLOCK_SIZE, size);
+        byte[] first = null;
+
+        try (var in = opener.resumable(url, validator, start, end, opener.openRange(url, validator, start, end - start))) {
+            for (var i = index; i * BLOCK_SIZE < end; i++) {
+                var block = in.readNBytes((int) Math.min(BLOCK_SIZE, end - i * BLOCK_SIZE));
+
+                if (block.length < Math.min(BLOCK_SIZE, end - i * BLOCK_SIZE)) {
+                    throw new EOFException("Truncated range of " + url + " at " + (i * BLOCK_SIZE + block.length));
+                }
+
+                blocks.put(i, block);
+
+                if (first == null) {
+                    first = block;
+                }
+            }
+        }
+
+        nextBlock = index + count;
+
+        return first;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("newPosition: " + newPosition);
+        }
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        blocks.clear();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import com.github.junrar.Archive;
+import com.github.junrar.exception.RarException;
+import com.github.junrar.rarfile.FileHeader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Opens entries of local RAR archives through pooled {@link Archive} handles.
+ * <p>
+ * {@link Archive} isn't safe for concurrent use, so every extraction leases
+ * its own handle from {@link ArchiveHandles}. The handle is returned to the
+ * pool once the extraction has finished, not when the reader closes the
+ * stream, so a handle is never used by two extractions at once.
+ * </p>
+ *
+ * @author m
+ */
+final class RarEntries {
+
+    private static final ExecutorService EXTRACTOR = newCachedThreadPool(r -> {
+        var t = new Thread(r, "vfs-rar-extractor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * An open archive with its file headers indexed by name.
+     */
+    static final class Handle implements Closeable {
+
+        final Archive archive;
+        final List<FileHeader> headers;
+        private final Map<String, FileHeader> byName = new HashMap<>();
+
+        Handle(File file) throws IOException {
+            try {
+                archive = new Archive(file);
+            } catch (RarException ex) {
+                throw new IOException("Error opening " + file, ex);
+            }
+
+            headers = archive.getFileHeaders();
+
+            for (var fh : headers) {
+                byName.putIfAbsent(fh.getFileName(), fh);
+            }
+        }
+
+        FileHeader getHeader(String name) {
+            return byName.get(name);
+        }
+
+        @Override
+        public void close() throws IOException {
+            archive.close();
+        }
+
+    }
+
+    /**
+     * Leases an archive handle.
+     *
+     * @param file the archive
+     * @return the lease, which must be closed when the handle is no longer used
+     * @throws IOException if the archive can't be opened
+     */
+    static ArchiveHandles.Lease<Handle> lease(File file) throws IOException {
+        return ArchiveHandles.acquire("rar", file, false, Handle::new);
+    }
+
+    /**
+     * Opens an entry of a local archive for reading.
+     *
+     * @param file the archive
+     * @param name the entry name
+     * @return a stream of the entry's data
+     * @throws IOException if the entry doesn't exist or can't be opened
+     */
+    static InputStream open(File file, String name) throws IOException {
+        var lease = lease(file);
+        var fh = lease.get().getHeader(name);
+
+        if (fh == null) {
+            lease.close();
+            throw new FileNotFoundException(name + " in " + file.getName());
+        }
+
+        return extract(lease.get().archive, fh, lease::close);
+    }
+
+    /**
+     * Extracts an entry in the background.
+     * <p>
+     * The archive must not be used by anyone else until the extraction is
+     * finished, which is signalled by calling {@code done} right before the
+     * end of the returned stream is reached.
+     * </p>
+     *
+     * @param archive the archive
+     * @param fh      the header of the entry, belonging to the archive
+     * @param done    called when the extraction is finished or couldn't be started
+     * @return a stream of the entry's data
+     * @throws IOException if the extraction can't be started
+     */
+    static InputStream extract(Archive archive, FileHeader fh, Runnable done) throws IOException {
+        var in = new ExtractedInputStream();
+
+        try {
+            var out = new PipedOutputStream(in);
+
+            EXTRACTOR.execute(() -> {
+                try {
+                    archive.extractFile(fh, out);
+                } catch (RarException | RuntimeException ex) {
+                    in.error = ex;
+                } finally {
+                    done.run();
+
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        // the reader has already closed its end
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException ex) {
+            done.run();
+            throw ex;
+        }
+
+        return in;
+    }
+
+    /**
+     * Reports extraction errors to the reader instead of a truncated stream.
+     */
+    private static class ExtractedInputStream extends PipedInputStream {
+
+        volatile Exception error = null;
+
+        ExtractedInputStream() {
+            super(65536);
+        }
+
+        private int checkError(int nr) throws IOException {
+            if (nr == -1 && error != null) {
+                throw new IOException("Error extracting entry", error);
+            }
+
+            return nr;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return checkError(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return checkError(super.read(b, off, len));
+        }
+
+    }
+
+    private RarEntries() {
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A response body which is closed when a read receives no data in time.
+ * <p>
+ * {@link java.net.http.HttpClient} only times out waiting for the response
+ * headers, so a server stalling in the middle of the body would block the
+ * reader forever. Every blocking call on this stream arms a watchdog which
+ * closes the underlying stream once the timeout elapses, and the call then
+ * fails with {@link HttpTimeoutException}. As that isn't an
+ * {@link java.io.InterruptedIOException}, resumable streams reconnect after
+ * it like after any other failed read.
+ * </p>
+ *
+ * @author m
+ */
+class ReadTimeoutInputStream extends FilterInputStream {
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+        var t = new Thread(r, "vfs-http-read-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        // reads normally finish long before their timeout
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final URL url;
+    private final long timeout;
+    private volatile boolean expired = false;
+
+    /**
+     * Creates a stream timing out reads of a response body.
+     *
+     * @param in      the response body
+     * @param url     the requested URL
+     * @param timeout the maximum time a read may wait for data, in milliseconds
+     */
+    ReadTimeoutInputStream(InputStream in, URL url, long timeout) {
+        super(in);
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    private ScheduledFuture<?> watch() {
+        return WATCHDOG.schedule(() -> {
+            expired = true;
+            IOUtils.closeQuietly(in);
+        }, timeout, MILLISECONDS);
+    }
+
+    private IOException failed(IOException ex) {
+        if (!expired) {
+            return ex;
+        }
+
+        var timedOut = new HttpTimeoutException("No data received from " + url + " for " + timeout + " ms");
+        timedOut.addSuppressed(ex);
+        return timedOut;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var watch = watch();
+
+        try {
+            return super.read();
+        } catch (IOException ex) {
+            throw failed(ex);
+        } finally {
+            watch.cancel(false);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var watch = watch();
+
+        try {
+            return super.read(b, off, len);
+        } catch (IOException ex) {
+            throw failed(ex);
+        } finally {
+            watch.cancel(false);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var watch = watch();
+
+        try {
+            return super.skip(n);
+        } catch (IOException ex) {
+            throw failed(ex);
+        } finally {
+            watch.cancel(false);
+        }
+    }
+
+}
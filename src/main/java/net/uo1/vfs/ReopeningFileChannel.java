@@ -0,0 +1,244 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A read-only file channel shared by several threads, which survives the
+ * interruption of any one of them.
+ * <p>
+ * Interrupting a thread blocked in an operation on a {@link FileChannel}
+ * closes the channel, so every other thread reading it fails as well. This
+ * channel reads through a channel it reopens whenever it finds it closed
+ * by someone else, and repeats the failed operation. The interrupted thread
+ * itself still fails with {@link ClosedByInterruptException}. Positional
+ * reads and mappings can simply be repeated, transfers only if no data can
+ * have been written to the target yet. Relative reads use a position kept
+ * by this channel, so it survives reopening.
+ * </p>
+ *
+ * @author m
+ */
+final class ReopeningFileChannel extends FileChannel {
+
+    private final Path path;
+    private final Object lock = new Object();
+    private volatile FileChannel channel;
+    private long position = 0;
+
+    @FunctionalInterface
+    private interface Operation<T> {
+
+        T run(FileChannel channel) throws IOException;
+
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param path the file
+     * @throws IOException if the file can't be opened
+     */
+    ReopeningFileChannel(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, READ);
+    }
+
+    private <T> T run(Operation<T> operation) throws IOException {
+        for (;;) {
+            var ch = channel;
+
+            try {
+                return operation.run(ch);
+            } catch (ClosedChannelException ex) {
+                if (!reopen(ch, ex)) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces a channel closed by another thread's interruption.
+     *
+     * @param closed the channel an operation failed on
+     * @param ex     the failure
+     * @return {@code false} if the failure must be thrown
+     */
+    private boolean reopen(FileChannel closed, ClosedChannelException ex) throws IOException {
+        if (ex instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+
+        synchronized (lock) {
+            if (!isOpen()) {
+                return false;
+            }
+
+            if (channel == closed && !closed.isOpen()) {
+                channel = FileChannel.open(path, READ);
+            }
+
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var nr = read(dst, position);
+
+        if (nr > 0) {
+            position += nr;
+        }
+
+        return nr;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        var total = 0L;
+
+        for (var i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) {
+                continue;
+            }
+
+            var nr = read(dsts[i]);
+
+            if (nr == -1) {
+                return total == 0 ? -1 : total;
+            }
+
+            total += nr;
+
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return run(ch -> ch.read(dst, position));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("newPosition: " + newPosition);
+        }
+
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return run(FileChannel::size);
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        run(ch -> {
+            ch.force(metaData);
+            return null;
+        });
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        for (;;) {
+            var ch = channel;
+            // a failed transfer leaves the position of a seekable target where it was
+            var start = target instanceof SeekableByteChannel ? ((SeekableByteChannel) target).position() : -1;
+
+            try {
+                return ch.transferTo(position, count, target);
+            } catch (ClosedChannelException ex) {
+                var untouched = !(ex instanceof AsynchronousCloseException) || (start != -1 && ((SeekableByteChannel) target).position() == start);
+
+                if (!untouched || !reopen(ch, ex)) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return run(ch -> ch.map(mode, position, size));
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return run(ch -> ch.lock(position, size, shared));
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return run(ch -> ch.tryLock(position, size, shared));
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        synchronized (lock) {
+            channel.close();
+        }
+    }
+
+}
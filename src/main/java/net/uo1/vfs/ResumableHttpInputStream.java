@@ -0,0 +1,164 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A stream of a remote resource which reconnects when the connection fails.
+ * <p>
+ * The stream tracks its position within the resource. When reading fails,
+ * or the body ends before the expected length, it waits and requests the
+ * rest of the resource with {@code Range: bytes=position-}, conditional on
+ * the resource's validator through {@code If-Range}, so the reader only sees
+ * a delay. Consecutive attempts back off exponentially and the attempt count
+ * is reset whenever data is read. Failures which retrying can't fix, such
+ * as the resource having changed or been removed, are thrown immediately.
+ * </p>
+ *
+ * @author m
+ */
+class ResumableHttpInputStream extends InputStream {
+
+    private static final Logger LOG = Logger.getLogger(ResumableHttpInputStream.class.getName());
+
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    private final HttpClientUrlOpener opener;
+    private final URL url;
+    private final String validator;
+    private final long end;
+    private InputStream in;
+    private long position;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream continuing an open response.
+     *
+     * @param opener    the opener sending the range requests
+     * @param url       the URL
+     * @param validator the resource's strong ETag or modification time
+     * @param position  the position of the response's first byte within the resource
+     * @param end       the position after the response's last byte, or {@code -1} if unknown
+     * @param in        the response body
+     */
+    ResumableHttpInputStream(HttpClientUrlOpener opener, URL url, String validator, long position, long end, InputStream in) {
+        this.opener = opener;
+        this.url = url;
+        this.validator = validator;
+        this.position = position;
+        this.end = end;
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (end != -1 && position >= end) {
+            return -1;
+        }
+
+        for (var attempt = 0;; attempt++) {
+            try {
+                if (in == null) {
+                    in = opener.openRange(url, validator, position, end == -1 ? -1 : end - position);
+                }
+
+                var nr = in.read(b, off, end == -1 ? len : (int) Math.min(len, end - position));
+
+                if (nr == -1) {
+                    if (end != -1 && position < end) {
+                        throw new EOFException("Connection closed at " + position + " of " + end);
+                    }
+
+                    return -1;
+                }
+
+                position += nr;
+
+                return nr;
+            } catch (HttpClientUrlOpener.RangeNotReturnedException | FileNotFoundException | InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (attempt >= opener.getMaxRetries()) {
+                    throw ex;
+                }
+
+                IOUtils.closeQuietly(in);
+                in = null;
+
+                LOG.log(WARNING, "Resuming {0} at {1} after: {2}", new Object[]{url, position, ex.toString()});
+
+                try {
+                    Thread.sleep(Math.min(opener.getRetryDelay() << Math.min(attempt, 16), MAX_RETRY_DELAY));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    var iioe = new InterruptedIOException("Interrupted while resuming " + url);
+                    iioe.addSuppressed(ex);
+                    throw iioe;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = 0L;
+
+        if (in != null) {
+            // skipping on the current connection may fail like reading
+            try {
+                skipped = in.skip(end == -1 ? n : Math.min(n, end - position));
+            } catch (IOException ex) {
+                IOUtils.closeQuietly(in);
+                in = null;
+            }
+        } else if (end != -1) {
+            // the next request starts after the skipped bytes
+            skipped = Math.min(n, end - position);
+        }
+
+        position += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in == null ? 0 : in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the files reported by {@link VfsScanner}.
+ * <p>
+ * The filter is checked before a file is opened or a task is created for
+ * it, so rejected archive entries are never decompressed. Files are checked
+ * with {@link #accept(VfsFile)}, while directories and archives are checked
+ * with {@link #acceptContainer(VfsFile)}, which may prune them along with
+ * everything they contain.
+ * </p>
+ * <p>
+ * Paths are matched against {@link VfsFile#toString()}, in which archive
+ * entries are separated from their archive by a slash, e.g.
+ * {@code /data/archive.zip/dir/file.csv}.
+ * </p>
+ *
+ * @author m
+ */
+@FunctionalInterface
+public interface ScanFilter {
+
+    /**
+     * A filter accepting everything.
+     */
+    ScanFilter ALL = file -> true;
+
+    /**
+     * Checks whether a file should be reported.
+     * <p>
+     * Sizes and modification times may be unknown for some archive entries,
+     * in which case they are {@code null}.
+     * </p>
+     *
+     * @param file the file, which hasn't been opened yet
+     * @return {@code true} to report the file to the consumer
+     */
+    boolean accept(VfsFile file);
+
+    /**
+     * Checks whether a directory or an archive should be traversed.
+     *
+     * @param container the directory or archive
+     * @return {@code false} if nothing it contains can be accepted
+     */
+    default boolean acceptContainer(VfsFile container) {
+        return true;
+    }
+
+    /**
+     * Returns a filter accepting files accepted by both this and the other filter.
+     *
+     * @param other the other filter
+     * @return the combined filter
+     */
+    default ScanFilter and(ScanFilter other) {
+        var self = this;
+
+        return new ScanFilter() {
+            @Override
+            public boolean accept(VfsFile file) {
+                return self.accept(file) && other.accept(file);
+            }
+
+            @Override
+            public boolean acceptContainer(VfsFile container) {
+                return self.acceptContainer(container) && other.acceptContainer(container);
+            }
+        };
+    }
+
+    /**
+     * Returns a filter accepting files accepted by either this or the other filter.
+     *
+     * @param other the other filter
+     * @return the combined filter
+     */
+    default ScanFilter or(ScanFilter other) {
+        var self = this;
+
+        return new ScanFilter() {
+            @Override
+            public boolean accept(VfsFile file) {
+                return self.accept(file) || other.accept(file);
+            }
+
+            @Override
+            public boolean acceptContainer(VfsFile container) {
+                return self.acceptContainer(container) || other.acceptContainer(container);
+            }
+        };
+    }
+
+    /**
+     * Returns a filter accepting files matching a predicate. Containers are
+     * always traversed.
+     *
+     * @param predicate the predicate
+     * @return the filter
+     */
+    static ScanFilter of(Predicate<VfsFile> predicate) {
+        return predicate::test;
+    }
+
+    /**
+     * Returns a filter matching paths against a glob pattern.
+     * <p>
+     * {@code *} and {@code ?} match within a single path component,
+     * {@code **} matches across components and {@code {a,b}} matches either
+     * alternative. A pattern without slashes, such as {@code *.csv}, is
+     * matched against file names at any depth. Otherwise it's matched
+     * against the whole path and containers which can't contain a match,
+     * such as {@code /data/other.zip} for {@code /data/archive.zip/**.csv},
+     * are pruned.
+     * </p>
+     *
+     * @param glob the glob pattern
+     * @return the filter
+     */
+    static ScanFilter glob(String glob) {
+        if (glob.indexOf('/') == -1) {
+            var pattern = Pattern.compile(globToRegex(glob));
+
+            return file -> pattern.matcher(file.getLastName()).matches();
+        }
+
+        return regex(Pattern.compile(globToRegex(glob)));
+    }
+
+    /**
+     * Returns a filter matching whole paths against a regular expression.
+     * <p>
+     * Containers are pruned when no path starting with theirs can match.
+     * </p>
+     *
+     * @param regex the regular expression
+     * @return the filter
+     */
+    static ScanFilter regex(String regex) {
+        return regex(Pattern.compile(regex));
+    }
+
+    /**
+     * Returns a filter matching whole paths against a regular expression.
+     * <p>
+     * Containers are pruned when no path starting with theirs can match.
+     * </p>
+     *
+     * @param pattern the regular expression
+     * @return the filter
+     */
+    static ScanFilter regex(Pattern pattern) {
+        return new ScanFilter() {
+            @Override
+            public boolean accept(VfsFile file) {
+                return pattern.matcher(file.toString()).matches();
+            }
+
+            @Override
+            public boolean acceptContainer(VfsFile container) {
+                var m = pattern.matcher(container.toString() + "/");
+
+                // hitEnd() tells whether more input could have changed the result
+                return m.matches() || m.hitEnd();
+            }
+        };
+    }
+
+    /**
+     * Returns a filter accepting files of at most the specified size.
+     * Files of unknown size are accepted.
+     *
+     * @param maxSize the maximum size in bytes
+     * @return the filter
+     */
+    static ScanFilter maxSize(long maxSize) {
+        return file -> file.length() == null || file.length() <= maxSize;
+    }
+
+    /**
+     * Returns a filter accepting files of at least the specified size.
+     * Files of unknown size are accepted.
+     *
+     * @param minSize the minimum size in bytes
+     * @return the filter
+     */
+    static ScanFilter minSize(long minSize) {
+        return file -> file.length() == null || file.length() >= minSize;
+    }
+
+    /**
+     * Returns a filter accepting files modified at or after the specified time.
+     * Files with unknown modification times are accepted.
+     *
+     * @param time the time in milliseconds since epoch
+     * @return the filter
+     */
+    static ScanFilter modifiedSince(long time) {
+        return file -> file.lastModified() == null || file.lastModified() >= time;
+    }
+
+    /**
+     * Returns a filter accepting files modified before the specified time.
+     * Files with unknown modification times are accepted.
+     *
+     * @param time the time in milliseconds since epoch
+     * @return the filter
+     */
+    static ScanFilter modifiedBefore(long time) {
+        return file -> file.lastModified() == null || file.lastModified() < time;
+    }
+
+    private static String globToRegex(String glob) {
+        var b = new StringBuilder();
+        var inGroup = false;
+
+        for (var i = 0; i < glob.length(); i++) {
+            var c = glob.charAt(i);
+
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        b.append(".*");
+                        i++;
+                    } else {
+                        b.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    b.append("[^/]");
+                    break;
+                case '{':
+                    b.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    b.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    b.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    b.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,531 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import static java.util.Arrays.copyOf;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import static java.util.logging.Level.SEVERE;
+import java.util.logging.Logger;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Tracks a single scan started by {@link VfsScanner#scanAsync(VfsFile)} or
+ * one of its overloads.
+ * <p>
+ * The handle counts every task forked while scanning (directory children,
+ * archive entries and nested archives) and completes when all of them are
+ * finished. Errors are collected rather than logged and reported through a
+ * {@link VfsScanException} once the scan is complete.
+ * </p>
+ *
+ * @author m
+ */
+public class ScanHandle {
+
+    private static final Logger LOG = Logger.getLogger(ScanHandle.class.getName());
+
+    private static final int MAX_RECORDED_ARCHIVES = 4096;
+
+    // archives with more files are scanned again instead of being replayed
+    static final int MAX_RECORDED_ENTRIES_PER_ARCHIVE = 1 << 14;
+
+    static final int MAX_RECORDED_ENTRIES = 1 << 20;
+
+    // entries up to this size are digested before the consumer reads them from memory
+    private static final int MAX_BUFFERED_CONTENT = 1 << 20;
+
+    private final VfsScanner scanner;
+    private final Consumer<VfsFile> consumer;
+    private final boolean async;
+    private final ScanFilter filter;
+    private final ScanManifest manifest;
+    final boolean metadataOnly;
+    private final String[] digestAlgorithms;
+    final boolean dedup;
+    private final Map<String, RecordedArchive> fingerprints = new ConcurrentHashMap<>();
+    private final Map<String, RecordedArchive> recordings = new ConcurrentHashMap<>();
+    private final Queue<VfsFile> archives = new ConcurrentLinkedQueue<>();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicInteger recordedEntries = new AtomicInteger();
+    private final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private volatile VfsInterruptException interruptException = null;
+
+    /**
+     * Creates a new handle.
+     *
+     * @param scanner  the scanner performing the scan
+     * @param consumer the consumer to invoke for each file found
+     * @param async    {@code true} to collect errors, {@code false} to log them
+     *                 and interrupt the whole scanner on {@link VfsInterruptException}
+     */
+    ScanHandle(VfsScanner scanner, Consumer<VfsFile> consumer, boolean async) {
+        this.scanner = scanner;
+        this.consumer = consumer;
+        this.async = async;
+        this.filter = scanner.getFilter();
+        this.manifest = scanner.getManifest();
+        this.metadataOnly = scanner.isMetadataOnly();
+        this.digestAlgorithms = scanner.getDigestAlgorithms();
+        this.dedup = scanner.isNestedArchiveDedup();
+    }
+
+    /**
+     * The files found in a nested archive, replayed for its duplicates.
+     */
+    static final class RecordedArchive {
+
+        final VfsFile archive;
+        final List<VfsFile> entries = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean partial = false;
+        volatile boolean complete = false;
+
+        RecordedArchive(VfsFile archive) {
+            this.archive = archive;
+        }
+
+    }
+
+    /**
+     * Checks a file or container against the filter and the manifest of this scan.
+     */
+    boolean accepts(VfsFile file, boolean container) {
+        if (!(container ? filter.acceptContainer(file) : filter.accept(file))) {
+            // a recording missing a skipped file can't be replayed under another path
+            forEachRecording(file, this::discard);
+            return false;
+        }
+
+        if (manifest == null) {
+            return true;
+        }
+
+        if (manifest.isUnchanged(file)) {
+            forEachRecording(file, r -> r.partial = true);
+            return false;
+        }
+
+        if (container && VfsScanner.isArchive(file)) {
+            archives.add(file);
+        }
+
+        return true;
+    }
+
+    void accept(VfsFile file) {
+        if (digestAlgorithms.length > 0 && file.getDigests().isEmpty()) {
+            try {
+                file.setDigests(file.digest(digestAlgorithms));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        consumer.accept(file);
+        recordAccepted(file);
+    }
+
+    /**
+     * Reports an archive entry, computing its digests from the stream the
+     * scanner is reading it from.
+     * <p>
+     * Entries of sequentially read archives can only be read once without
+     * decompressing the archive again, so the digests and the consumer
+     * share a single read. Entries up to {@link #MAX_BUFFERED_CONTENT} bytes
+     * are read and digested first, and the consumer reads them from memory.
+     * Larger entries are digested while the consumer reads them, and
+     * whatever it leaves unread is digested after it returns, so their
+     * digests are only known to the manifest and to later replays.
+     * </p>
+     *
+     * @param file the entry
+     * @param in   the entry's content
+     * @throws IOException if the content can't be read
+     */
+    void accept(VfsFile file, InputStream in) throws IOException {
+        if (digestAlgorithms.length == 0 || !file.getDigests().isEmpty() || file.archived.length == 0) {
+            accept(file);
+            return;
+        }
+
+        var digesting = new DigestingInputStream(in, digestAlgorithms);
+        var head = digesting.readNBytes(MAX_BUFFERED_CONTENT + 1);
+        var previous = file.getOpener();
+
+        try {
+            if (head.length <= MAX_BUFFERED_CONTENT) {
+                file.setDigests(digesting.digests());
+                file.setOpener(() -> new ByteArrayInputStream(head));
+                consumer.accept(file);
+            } else {
+                // the sequence closes each stream it has exhausted, which mustn't close the archive
+                var content = new SequenceInputStream(new ByteArrayInputStream(head), CloseShieldInputStream.wrap(digesting));
+
+                file.setOpener(() -> {
+                    file.resetOpener();
+                    return CloseShieldInputStream.wrap(content);
+                });
+                consumer.accept(file);
+                digesting.transferTo(OutputStream.nullOutputStream());
+                file.setDigests(digesting.digests());
+            }
+        } finally {
+            file.setOpener(previous);
+        }
+
+        recordAccepted(file);
+    }
+
+    private void recordAccepted(VfsFile file) {
+        if (manifest != null) {
+            manifest.record(file);
+        }
+
+        forEachRecording(file, r -> record(r, file));
+    }
+
+    private void record(RecordedArchive recording, VfsFile file) {
+        synchronized (recording.entries) {
+            if (recording.partial) {
+                return;
+            }
+
+            if (recording.entries.size() < MAX_RECORDED_ENTRIES_PER_ARCHIVE && reserveEntry()) {
+                recording.entries.add(file);
+            } else {
+                discard(recording);
+            }
+        }
+    }
+
+    private boolean reserveEntry() {
+        for (;;) {
+            var recorded = recordedEntries.get();
+
+            if (recorded >= MAX_RECORDED_ENTRIES) {
+                return false;
+            }
+
+            if (recordedEntries.compareAndSet(recorded, recorded + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks a recording as partial, so it's never replayed, and frees the
+     * files recorded so far.
+     */
+    private void discard(RecordedArchive recording) {
+        synchronized (recording.entries) {
+            recording.partial = true;
+            recordedEntries.addAndGet(-recording.entries.size());
+            recording.entries.clear();
+        }
+    }
+
+    private void forEachRecording(VfsFile file, Consumer<RecordedArchive> action) {
+        if (recordings.isEmpty()) {
+            return;
+        }
+
+        for (var i = file.archived.length; i > 0; i--) {
+            var recording = recordings.get(new VfsFile(file.file, copyOf(file.archived, i)).toString());
+
+            if (recording != null) {
+                action.accept(recording);
+            }
+        }
+    }
+
+    /**
+     * Returns the recording of a completely scanned archive with the specified fingerprint.
+     */
+    RecordedArchive getRecording(String fingerprint) {
+        var recording = fingerprints.get(fingerprint);
+        return recording != null && recording.complete ? recording : null;
+    }
+
+    /**
+     * Starts recording the files found in an archive, unless an archive
+     * with the same fingerprint is already being recorded.
+     */
+    boolean startRecording(String fingerprint, VfsFile archive) {
+        if (fingerprints.containsKey(fingerprint) || fingerprints.size() >= MAX_RECORDED_ARCHIVES) {
+            return false;
+        }
+
+        var recording = new RecordedArchive(archive);
+
+        if (fingerprints.putIfAbsent(fingerprint, recording) != null) {
+            return false;
+        }
+
+        recordings.put(archive.toString(), recording);
+
+        return true;
+    }
+
+    /**
+     * Stops recording an archive. Recordings of archives which weren't
+     * scanned completely, or of which some files were skipped or failed,
+     * are discarded.
+     */
+    void finishRecording(String fingerprint, VfsFile archive, boolean complete) {
+        var recording = recordings.remove(archive.toString());
+
+        if (complete && !recording.partial) {
+            recording.complete = true;
+        } else {
+            fingerprints.remove(fingerprint, recording);
+            discard(recording);
+        }
+    }
+
+    void fork() {
+        pending.incrementAndGet();
+    }
+
+    void done() {
+        if (pending.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Reserves memory for buffering a nested archive.
+     *
+     * @param bytes  the number of bytes to reserve
+     * @param budget the maximum number of bytes reserved by the scan at once
+     * @return {@code false} if the reservation would exceed the budget
+     */
+    boolean reserveBuffer(long bytes, long budget) {
+        for (;;) {
+            var reserved = bufferedBytes.get();
+
+            if (reserved > budget - bytes) {
+                return false;
+            }
+
+            if (bufferedBytes.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    void releaseBuffer(long bytes) {
+        bufferedBytes.addAndGet(-bytes);
+    }
+
+    void error(Object source, Throwable ex) {
+        if (source instanceof VfsFile) {
+            forEachRecording((VfsFile) source, this::discard);
+        }
+
+        if (async) {
+            errors.add(ex);
+
+            if (manifest != null) {
+                fail(source);
+            }
+        } else {
+            LOG.log(SEVERE, "Error scanning " + source, ex);
+        }
+    }
+
+    /**
+     * Prevents the archives containing a failed file from being recorded.
+     */
+    private void fail(Object source) {
+        failed.add(source.toString());
+
+        if (source instanceof VfsFile) {
+            var file = (VfsFile) source;
+
+            for (var i = 0; i < file.archived.length; i++) {
+                failed.add(new VfsFile(file.file, copyOf(file.archived, i)).toString());
+            }
+        }
+    }
+
+    void interrupt(VfsInterruptException ex) {
+        if (async) {
+            if (interruptException == null) {
+                interruptException = ex;
+            }
+        } else {
+            scanner.interruptException = ex;
+        }
+    }
+
+    void checkInterrupted() throws VfsInterruptException {
+        var ex = scanner.interruptException;
+
+        if (ex == null) {
+            ex = interruptException;
+        }
+
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    void abort(VfsInterruptException ex) {
+        interrupt(ex);
+        complete();
+    }
+
+    private void complete() {
+        // the last task may finish while the scan is being aborted
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+
+        scanner.handles.remove(this);
+
+        var ex = interruptException;
+
+        if (ex == null) {
+            ex = scanner.interruptException;
+        }
+
+        if (ex == null && manifest != null) {
+            for (var archive : archives) {
+                if (!failed.contains(archive.toString())) {
+                    manifest.record(archive);
+                }
+            }
+        }
+
+        if (ex != null) {
+            future.completeExceptionally(ex);
+        } else if (!errors.isEmpty()) {
+            future.completeExceptionally(new VfsScanException(new ArrayList<>(errors)));
+        } else {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Returns a future completed when the whole scan tree is finished.
+     * <p>
+     * The future completes exceptionally with a {@link VfsScanException} if
+     * any errors occurred, or with a {@link VfsInterruptException} if the scan
+     * was cancelled or the scanner was stopped.
+     * </p>
+     *
+     * @return the completion future
+     */
+    public CompletableFuture<Void> toCompletableFuture() {
+        return future;
+    }
+
+    /**
+     * Checks whether the scan is finished.
+     *
+     * @return {@code true} if all tasks of this scan are finished
+     */
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Returns the errors collected so far.
+     *
+     * @return a snapshot of the errors that occurred during scanning
+     */
+    public List<Throwable> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /**
+     * Cancels this scan without affecting other scans of the same scanner.
+     * <p>
+     * Tasks that have not started yet are skipped, and running tasks stop at
+     * the next archive entry or directory child.
+     * </p>
+     */
+    public void cancel() {
+        interrupt(new VfsInterruptException());
+    }
+
+    /**
+     * Waits for the scan to finish.
+     *
+     * @throws VfsScanException      if any errors occurred during scanning
+     * @throws VfsInterruptException if the scan was cancelled or the scanner was stopped
+     * @throws InterruptedException  if the current thread was interrupted while waiting
+     */
+    public void await() throws VfsScanException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Waits at most the given time for the scan to finish.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout argument
+     * @return {@code true} if the scan finished, {@code false} if the timeout elapsed
+     * @throws VfsScanException      if any errors occurred during scanning
+     * @throws VfsInterruptException if the scan was cancelled or the scanner was stopped
+     * @throws InterruptedException  if the current thread was interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws VfsScanException, InterruptedException {
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (ExecutionException ex) {
+            throw rethrow(ex);
+        } catch (TimeoutException ex) {
+            return false;
+        }
+    }
+
+    private static VfsScanException rethrow(ExecutionException ex) {
+        var cause = ex.getCause();
+
+        if (cause instanceof VfsScanException) {
+            return (VfsScanException) cause;
+        }
+
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return new VfsScanException(List.of(cause));
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent record of the files processed by previous scans, used by
+ * {@link VfsScanner} to scan incrementally.
+ * <p>
+ * Files are keyed by {@link VfsFile#toString()} and recorded with their
+ * size, modification time and CRC, when known. A file whose attributes
+ * match its record is skipped, and so is a whole archive, whose record is
+ * only written once all of its entries were scanned without errors.
+ * </p>
+ * <p>
+ * The manifest is kept in memory while scanning and written by
+ * {@link #save()}, which replaces the file atomically. Keys are stored
+ * sorted and prefix-compressed, so a manifest of millions of entries sharing
+ * long directory and archive paths stays small.
+ * </p>
+ *
+ * @author m
+ */
+public class ScanManifest {
+
+    private static final int MAGIC = 0x56534d31;
+    private static final long UNKNOWN = -1;
+
+    private static final class Entry {
+
+        final long length;
+        final long modified;
+        final long crc;
+        volatile boolean seen;
+
+        Entry(long length, long modified, long crc, boolean seen) {
+            this.length = length;
+            this.modified = modified;
+            this.crc = crc;
+            this.seen = seen;
+        }
+
+    }
+
+    private final File file;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    private ScanManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads a manifest, or creates an empty one if the file doesn't exist.
+     *
+     * @param file the manifest file
+     * @return the manifest
+     * @throws IOException if the file exists but can't be read
+     */
+    public static ScanManifest load(File file) throws IOException {
+        var manifest = new ScanManifest(file);
+
+        if (!file.exists()) {
+            return manifest;
+        }
+
+        try ( var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a scan manifest: " + file);
+            }
+
+            var count = in.readInt();
+            var key = "";
+
+            for (var i = 0; i < count; i++) {
+                key = key.substring(0, in.readInt()) + in.readUTF();
+
+                manifest.entries.put(key, new Entry(in.readLong(), in.readLong(), in.readLong(), false));
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Returns the manifest file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of recorded files.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks whether a file matches its record.
+     * <p>
+     * Files are compared by size, modification time and CRC. A file of
+     * which neither the modification time nor the CRC is known is always
+     * considered changed. An unchanged file is marked as seen, along with
+     * all records under it if it's an archive.
+     * </p>
+     *
+     * @param file the file
+     * @return {@code true} if the file was recorded and hasn't changed since
+     */
+    public boolean isUnchanged(VfsFile file) {
+        var key = file.toString();
+        var e = entries.get(key);
+        var modified = valueOf(file.lastModified());
+        var crc = valueOf(file.getCrc());
+
+        if (e == null || (modified == UNKNOWN && crc == UNKNOWN)) {
+            return false;
+        }
+
+        if (e.length != valueOf(file.length()) || e.modified != modified) {
+            return false;
+        }
+
+        if (e.crc != UNKNOWN && crc != UNKNOWN && e.crc != crc) {
+            return false;
+        }
+
+        e.seen = true;
+
+        for (var nested : entries.subMap(key + "/", key + "/\uffff").values()) {
+            nested.seen = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records a file as processed.
+     *
+     * @param file the file
+     */
+    public void record(VfsFile file) {
+        entries.put(file.toString(), new Entry(valueOf(file.length()), valueOf(file.lastModified()), valueOf(file.getCrc()), true));
+    }
+
+    /**
+     * Removes the record of a file.
+     *
+     * @param file the file
+     */
+    public void remove(VfsFile file) {
+        entries.remove(file.toString());
+    }
+
+    /**
+     * Removes records of files which have neither been recorded nor found
+     * unchanged since the manifest was loaded, such as files which have
+     * been deleted. It should only be called after a full scan.
+     */
+    public void prune() {
+        entries.values().removeIf(e -> !e.seen);
+    }
+
+    /**
+     * Writes the manifest, atomically replacing the file.
+     *
+     * @throws IOException if the manifest can't be written
+     */
+    public void save() throws IOException {
+        var dir = file.getAbsoluteFile().getParentFile();
+        var temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+        try {
+            var snapshot = entries.clone();
+
+            try ( var out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+
+                var previous = "";
+
+                for (var e : snapshot.entrySet()) {
+                    var key = e.getKey();
+                    var shared = 0;
+                    var max = Math.min(previous.length(), key.length());
+
+                    while (shared < max && previous.charAt(shared) == key.charAt(shared)) {
+                        shared++;
+                    }
+
+                    out.writeInt(shared);
+                    out.writeUTF(key.substring(shared));
+                    out.writeLong(e.getValue().length);
+                    out.writeLong(e.getValue().modified);
+                    out.writeLong(e.getValue().crc);
+
+                    previous = key;
+                }
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static long valueOf(Long value) {
+        return value == null ? UNKNOWN : value;
+    }
+
+}
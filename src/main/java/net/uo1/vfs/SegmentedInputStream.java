@@ -0,0 +1,268 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads a remote resource by downloading several ranges at once.
+ * <p>
+ * The stream starts with the body of the response to the first range and
+ * keeps up to the configured number of following ranges downloading into
+ * buffers, which are returned in order and reused once they have been read.
+ * When the server reports an ETag or a modification time, every range
+ * request is conditional on it, so a resource which changes during the
+ * download fails the stream rather than mixing two versions. Closing the
+ * stream interrupts the ranges still downloading, which closes their
+ * connections and releases their host permits.
+ * </p>
+ *
+ * @author m
+ */
+class SegmentedInputStream extends InputStream {
+
+    // downloads block on reading response bodies, which virtual threads make cheap
+    private static final ExecutorService FETCHER = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vfs-segment-fetcher-", 0).factory());
+
+    /**
+     * A range being downloaded into a buffer.
+     */
+    private static final class Segment {
+
+        final byte[] buffer;
+        final int length;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Thread thread = null;
+        private boolean cancelled = false;
+
+        Segment(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        /**
+         * Registers the thread downloading the range.
+         *
+         * @return {@code false} if the segment has already been cancelled
+         */
+        synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+
+            thread = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void finish() {
+            thread = null;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+
+            if (thread != null) {
+                // aborts waiting for the response or reading its body
+                thread.interrupt();
+            }
+        }
+
+    }
+
+    private final HttpClientUrlOpener opener;
+    private final URL url;
+    private final String validator;
+    private final long size;
+    private final int segmentSize;
+    private final int segments;
+    private final Deque<Segment> pending = new ArrayDeque<>();
+    private final Deque<byte[]> free = new ArrayDeque<>();
+    private InputStream first;
+    private long firstRemaining;
+    private long nextOffset;
+    private Segment current = null;
+    private int currentPosition = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream continuing the response to the first range.
+     *
+     * @param opener      the opener sending the range requests
+     * @param url         the URL
+     * @param validator   the resource's strong ETag or modification time, or {@code null}
+     * @param size        the size of the resource
+     * @param first       the body of the response to the first range
+     * @param firstLength the length of the first range
+     * @param segmentSize the length of the following ranges
+     * @param segments    the number of ranges downloaded at once
+     */
+    SegmentedInputStream(HttpClientUrlOpener opener, URL url, String validator, long size, InputStream first, long firstLength, int segmentSize, int segments) {
+        this.opener = opener;
+        this.url = url;
+        this.validator = validator;
+        this.size = size;
+        this.first = first;
+        this.firstRemaining = firstLength;
+        this.nextOffset = firstLength;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+
+        fill();
+    }
+
+    /**
+     * Starts downloading ranges until the configured number is in progress.
+     */
+    private void fill() {
+        while (pending.size() < segments && nextOffset < size) {
+            var offset = nextOffset;
+            var length = (int) Math.min(segmentSize, size - offset);
+            var buffer = free.isEmpty() ? new byte[segmentSize] : free.poll();
+
+            var segment = new Segment(buffer, length);
+
+            nextOffset += length;
+            pending.add(segment);
+
+            FETCHER.execute(() -> {
+                if (!segment.start()) {
+                    segment.done.cancel(false);
+                    return;
+                }
+
+                try ( var in = opener.resumable(url, validator, offset, offset + length, opener.openRange(url, validator, offset, length))) {
+                    if (in.readNBytes(buffer, 0, length) < length) {
+                        throw new EOFException("Truncated range of " + url + " at " + offset);
+                    }
+
+                    segment.done.complete(null);
+                } catch (IOException | RuntimeException ex) {
+                    segment.done.completeExceptionally(ex);
+                } finally {
+                    segment.finish();
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes the next downloaded range current, waiting for it if necessary.
+     *
+     * @return {@code false} at the end of the resource
+     */
+    private boolean next() throws IOException {
+        if (current != null) {
+            free.add(current.buffer);
+            current = null;
+        }
+
+        fill();
+
+        var segment = pending.poll();
+
+        if (segment == null) {
+            return false;
+        }
+
+        try {
+            segment.done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        } catch (ExecutionException ex) {
+            throw HttpClientUrlOpener.unwrap(ex.getCause(), url);
+        }
+
+        current = segment;
+        currentPosition = 0;
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (first != null) {
+            var nr = first.read(b, off, (int) Math.min(len, firstRemaining));
+
+            if (nr == -1) {
+                throw new EOFException("Truncated first range of " + url);
+            }
+
+            firstRemaining -= nr;
+
+            if (firstRemaining == 0) {
+                first.close();
+                first = null;
+            }
+
+            return nr;
+        }
+
+        if ((current == null || currentPosition == current.length) && !next()) {
+            return -1;
+        }
+
+        var n = Math.min(len, current.length - currentPosition);
+
+        System.arraycopy(current.buffer, currentPosition, b, off, n);
+        currentPosition += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (first != null) {
+            return (int) Math.min(first.available(), firstRemaining);
+        }
+
+        return current == null ? 0 : current.length - currentPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        for (var segment : pending) {
+            segment.cancel();
+        }
+
+        pending.clear();
+        free.clear();
+        current = null;
+
+        IOUtils.close(first);
+        first = null;
+    }
+
+}
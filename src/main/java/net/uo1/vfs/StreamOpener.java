@@ -6,6 +6,7 @@ package net.uo1.vfs;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  * A functional interface for opening input streams from various data sources.
@@ -28,5 +29,23 @@ public interface StreamOpener<T> {
      * @throws FileNotFoundException if the referenced resource doesn't exist
      */
     InputStream open(T dataRef) throws IOException, FileNotFoundException;
-    
+
+    /**
+     * Opens a seekable channel for the specified data reference, if the
+     * source supports random access.
+     * <p>
+     * Archives available through a channel are read through their index,
+     * so single entries can be opened without reading the whole archive.
+     * The default implementation returns {@code null}.
+     * </p>
+     *
+     * @param dataRef the reference to the data source
+     * @return a read-only channel, or {@code null} if the source can only be streamed
+     * @throws IOException           if an I/O error occurs
+     * @throws FileNotFoundException if the referenced resource doesn't exist
+     */
+    default SeekableByteChannel openChannel(T dataRef) throws IOException, FileNotFoundException {
+        return null;
+    }
+
 }
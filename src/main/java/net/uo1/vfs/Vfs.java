@@ -4,14 +4,16 @@
 package net.uo1.vfs;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  * Global configuration and utility class for the Virtual File System.
  * <p>
- * Provides static configuration for HTTP settings (user agent, timeouts)
- * and customizable URL openers for handling different protocols.
+ * Provides static configuration for HTTP settings (user agent, timeouts),
+ * the pools of open archive handles and read buffers and customizable URL openers for
+ * handling different protocols.
  * </p>
  *
  * @author m
@@ -20,54 +22,36 @@ public class Vfs {
     
     private static String USER_AGENT = "VFS/1.0 (Java; +https://github.com/azazar/vfs/)";
     private static int HTTP_TIMEOUT = 600000;
+    private static int MAX_OPEN_ARCHIVES = 64;
+    private static long ARCHIVE_IDLE_TIMEOUT = 60000;
+    private static int BUFFER_SIZE = 65536;
+    private static int MAX_POOLED_BUFFERS = 64;
     
-    private static StreamOpener<URL> HTTP_URL_OPENER = url -> {
-        var reqUrl = url;
-        
-        for(int i = 0; i < 10; i++) {
-            var conn = (HttpURLConnection) reqUrl.openConnection();
+    private static StreamOpener<URL> HTTP_URL_OPENER = new HttpClientUrlOpener();
 
-            conn.setInstanceFollowRedirects(true);
-
-            if (Vfs.getDefaultUserAgent() != null) {
-                conn.setRequestProperty("User-Agent", getDefaultUserAgent());
-            }
+    private static StreamOpener<URL> URL_OPENER = new StreamOpener<>() {
+        @Override
+        public InputStream open(URL url) throws IOException {
+            var proto = url.getProtocol();
 
-            if (Vfs.getDefaultHttpTimeout() > 0) {
-                conn.setConnectTimeout(Vfs.getDefaultHttpTimeout());
-                conn.setReadTimeout(Vfs.getDefaultHttpTimeout());
+            if ("http".equals(proto) || "https".equals(proto)) {
+                return getHttpUrlOpener().open(url);
             }
-            
-            var status = conn.getResponseCode();
-
-            if (status == 200)
-                return conn.getInputStream();
-            
-            if (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER) {
-                try {
-                    reqUrl = reqUrl.toURI().resolve(conn.getHeaderField("Location")).toURL();
-                } catch (java.net.URISyntaxException ex) {
-                    throw new IOException("Invalid redirect URL: " + conn.getHeaderField("Location"), ex);
-                }
-                
-                continue;
+            else {
+                return url.openStream();
             }
-            
-            throw new IOException("Invalid response code received for " + reqUrl);
         }
-        
-        throw new IOException("Too many redirects");
-    };
 
-    private static StreamOpener<URL> URL_OPENER = url -> {
+        @Override
+        public SeekableByteChannel openChannel(URL url) throws IOException {
             var proto = url.getProtocol();
 
             if ("http".equals(proto) || "https".equals(proto)) {
-                return getHttpUrlOpener().open(url);
-            }
-            else {
-                return url.openStream();
+                return getHttpUrlOpener().openChannel(url);
             }
+
+            return null;
+        }
     };
 
     /**
@@ -106,8 +90,99 @@ public class Vfs {
         HTTP_TIMEOUT = timeout;
     }
 
+    /**
+     * Returns the number of open archive handles above which idle handles are closed.
+     *
+     * @return the maximum number of pooled archive handles
+     */
+    public static int getMaxOpenArchives() {
+        return MAX_OPEN_ARCHIVES;
+    }
+
+    /**
+     * Sets the number of open archive handles above which idle handles are closed.
+     * <p>
+     * Handles in use are never closed, so the limit may be exceeded temporarily.
+     * </p>
+     *
+     * @param maxOpenArchives the maximum number of pooled archive handles
+     */
+    public static void setMaxOpenArchives(int maxOpenArchives) {
+        MAX_OPEN_ARCHIVES = maxOpenArchives;
+    }
+
+    /**
+     * Returns the time after which unused archive handles are closed.
+     *
+     * @return the idle timeout in milliseconds
+     */
+    public static long getArchiveIdleTimeout() {
+        return ARCHIVE_IDLE_TIMEOUT;
+    }
+
+    /**
+     * Sets the time after which unused archive handles are closed.
+     *
+     * @param timeout the idle timeout in milliseconds
+     */
+    public static void setArchiveIdleTimeout(long timeout) {
+        ARCHIVE_IDLE_TIMEOUT = timeout;
+    }
+
+    /**
+     * Closes all pooled archive handles which aren't currently in use.
+     */
+    public static void closeIdleArchives() {
+        ArchiveHandles.closeIdle();
+    }
+
+    /**
+     * Returns the size of the buffers used to read file content.
+     *
+     * @return the buffer size in bytes
+     */
+    public static int getBufferSize() {
+        return BUFFER_SIZE;
+    }
+
+    /**
+     * Sets the size of the buffers used to read file content.
+     *
+     * @param bufferSize the buffer size in bytes, must be positive
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public static void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        }
+        BUFFER_SIZE = bufferSize;
+        BufferPool.clear();
+    }
+
+    /**
+     * Returns the maximum number of idle read buffers kept for reuse.
+     *
+     * @return the maximum number of pooled buffers
+     */
+    public static int getMaxPooledBuffers() {
+        return MAX_POOLED_BUFFERS;
+    }
+
+    /**
+     * Sets the maximum number of idle read buffers kept for reuse.
+     *
+     * @param maxPooledBuffers the maximum number of pooled buffers, or {@code 0} to disable pooling
+     */
+    public static void setMaxPooledBuffers(int maxPooledBuffers) {
+        MAX_POOLED_BUFFERS = maxPooledBuffers;
+    }
+
     /**
      * Returns the current HTTP URL opener used for http/https protocols.
+     * <p>
+     * By default it's an {@link HttpClientUrlOpener}, reusing connections
+     * through a shared client.
+     * </p>
      *
      * @return the HTTP URL opener
      */
@@ -24,18 +24,39 @@
 package net.uo1.vfs;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import static java.util.Arrays.copyOf;
 import static java.util.Arrays.copyOfRange;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import static java.util.Objects.requireNonNull;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import static net.uo1.vfs.DataUrl.isDataUrl;
 import static net.uo1.vfs.DataUrl.parse;
 import static org.apache.commons.io.IOUtils.toByteArray;
@@ -61,6 +82,19 @@ import static org.apache.commons.lang3.StringUtils.split;
  */
 public class VfsFile {
 
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    // sizes come from untrusted archive headers, so larger content is allocated as it arrives
+    private static final int MAX_PRESIZED_CONTENT = 1 << 20;
+    private static final long PARALLEL_DIGEST_THRESHOLD = 64L << 20;
+    private static final long MAX_MAPPED_WINDOW = 1L << 30;
+
+    // hashing mapped files blocks on page faults, which mustn't occupy the common pool
+    private static final ExecutorService DIGESTER = newCachedThreadPool(r -> {
+        var t = new Thread(r, "vfs-digester");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Resolves an Apache Commons VFS2 style path to a VfsFile.
      * <p>
@@ -153,6 +187,14 @@ public class VfsFile {
     public final String[] archived;
     private Callable<InputStream> opener = new AutoOpener(this);
     private Long modified = null;
+    private Long length = null;
+    private Long crc = null;
+    private Long compressedSize = null;
+    private String method = null;
+    private boolean directory = false;
+    private volatile boolean indexed = false;
+    private volatile Map<String, byte[]> digests = Map.of();
+    private volatile VfsFile duplicateOf = null;
 
     /**
      * Creates a new VfsFile with the specified base file and archived path components.
@@ -232,6 +274,13 @@ public class VfsFile {
         this.opener = opener;
     }
 
+    /**
+     * Restores the default opener, which locates the file by its path.
+     */
+    void resetOpener() {
+        this.opener = new AutoOpener(this);
+    }
+
     /**
      * Opens an input stream for reading this file's content.
      * <p>
@@ -266,6 +315,12 @@ public class VfsFile {
 
     /**
      * Reads and returns the entire file content as a byte array.
+     * <p>
+     * When the size is known, content of up to 1 MiB is read into an array
+     * of exactly that size. Larger content is read into an array growing
+     * towards the size as data arrives, so a forged size in an archive
+     * header can't make this allocate more memory than the data occupies.
+     * </p>
      *
      * @return the file content as bytes
      * @throws IOException if an I/O error occurs
@@ -279,8 +334,79 @@ public class VfsFile {
             }
         }
 
+        var size = length();
+
         try ( var is = open()) {
-            return toByteArray(is);
+            if (size == null) {
+                return readUnknownSize(is);
+            }
+
+            if (size > MAX_ARRAY_SIZE) {
+                return toByteArray(is);
+            }
+
+            // the size is only a hint, a mismatch falls back to copying
+            var expected = size.intValue();
+            var content = new byte[Math.min(expected, MAX_PRESIZED_CONTENT)];
+            var nr = 0;
+
+            while (true) {
+                nr += is.readNBytes(content, nr, content.length - nr);
+
+                if (nr < content.length) {
+                    return copyOf(content, nr);
+                }
+
+                if (nr == expected) {
+                    var b = is.read();
+
+                    if (b == -1) {
+                        return content;
+                    }
+
+                    // longer than its size, the rest grows without a target
+                    expected = MAX_ARRAY_SIZE;
+                    content = grow(content, expected);
+                    content[nr++] = (byte) b;
+                } else {
+                    content = grow(content, expected);
+                }
+            }
+        }
+    }
+
+    private static byte[] grow(byte[] content, int target) {
+        if (content.length >= MAX_ARRAY_SIZE) {
+            throw new OutOfMemoryError("Content exceeds the maximum array size");
+        }
+
+        return copyOf(content, (int) Math.min(Math.max(content.length * 2L, 8192), target));
+    }
+
+    /**
+     * Reads content of unknown size through a pooled buffer, so content
+     * fitting in the buffer is copied into an array of its exact size once.
+     */
+    private static byte[] readUnknownSize(InputStream is) throws IOException {
+        var buf = BufferPool.acquire();
+
+        try {
+            var nr = is.readNBytes(buf, 0, buf.length);
+
+            if (nr < buf.length) {
+                return copyOf(buf, nr);
+            }
+
+            var bos = new ByteArrayOutputStream(buf.length * 2);
+            bos.write(buf, 0, nr);
+
+            while ((nr = is.read(buf)) != -1) {
+                bos.write(buf, 0, nr);
+            }
+
+            return bos.toByteArray();
+        } finally {
+            BufferPool.release(buf);
         }
     }
 
@@ -288,22 +414,210 @@ public class VfsFile {
      * Processes the file content in chunks using the specified processor.
      * <p>
      * This is more memory-efficient than {@link #getContent()} for large files.
+     * Chunks are read into pooled buffers (see {@link Vfs#setBufferSize(int)}),
+     * so the processor must not keep a reference to the array it's passed.
      * </p>
      *
      * @param dsp the data stream processor to handle the content
      * @throws IOException if an I/O error occurs
      */
     public void process(DataStreamProcessor dsp) throws IOException {
+        var buf = BufferPool.acquire();
+
         try ( var is = open()) {
-            var buf = new byte[65536];
             int nr;
 
             while ((nr = is.read(buf)) != -1) {
                 dsp.process(buf, 0, nr);
             }
+        } finally {
+            BufferPool.release(buf);
         }
     }
 
+    /**
+     * Processes the file content in chunks held in pooled direct buffers.
+     * <p>
+     * Files available through {@link #openChannel()} are read straight into
+     * the direct buffer. Other files are read through their stream, copying
+     * each chunk once from a pooled heap buffer, so the loop doesn't
+     * allocate either way.
+     * </p>
+     *
+     * @param bbp the processor to handle the content
+     * @throws IOException if an I/O error occurs
+     */
+    public void process(ByteBufferProcessor bbp) throws IOException {
+        var buf = BufferPool.acquireDirect();
+
+        try {
+            try ( var ch = openChannel()) {
+                if (ch != null) {
+                    // archive entries are checked like their streams
+                    var crc = isNative() ? null : new CRC32();
+                    var count = 0L;
+
+                    while (ch.read(buf) != -1) {
+                        buf.flip();
+                        count += buf.remaining();
+
+                        if (crc != null) {
+                            crc.update(buf.duplicate());
+                        }
+
+                        bbp.process(buf);
+                        buf.clear();
+                    }
+
+                    if (crc != null) {
+                        ZipIndex.check(zipEntry(), count, crc.getValue());
+                    }
+                    return;
+                }
+            }
+
+            var heap = BufferPool.acquire();
+
+            try ( var is = open()) {
+                int nr;
+
+                while ((nr = is.read(heap, 0, Math.min(heap.length, buf.remaining()))) != -1) {
+                    buf.put(heap, 0, nr);
+
+                    if (!buf.hasRemaining()) {
+                        bbp.process(buf.flip());
+                        buf.clear();
+                    }
+                }
+
+                if (buf.position() > 0) {
+                    bbp.process(buf.flip());
+                }
+            } finally {
+                BufferPool.release(heap);
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Computes digests of the file's content in a single pass.
+     * <p>
+     * Every chunk read is fed to all of the digests, so the content is read
+     * and decompressed only once. Besides {@link MessageDigest} algorithms
+     * such as {@code MD5} or {@code SHA-256}, the checksums {@code CRC32},
+     * {@code CRC32C} and {@code Adler32} are supported, reported as 4
+     * big-endian bytes.
+     * </p>
+     * <p>
+     * None of these algorithms can be split into independently hashed
+     * ranges, so large local files are instead mapped into memory and
+     * hashed by one thread per algorithm, all reading the same pages. The
+     * calling thread computes the first digest and dedicated threads the
+     * others.
+     * </p>
+     *
+     * @param algorithms the algorithm names
+     * @return the digests by algorithm name, in the order requested
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if an algorithm isn't supported
+     */
+    public Map<String, byte[]> digest(String... algorithms) throws IOException {
+        var digesters = new LinkedHashMap<String, Digester>();
+
+        for (var algorithm : algorithms) {
+            digesters.put(algorithm, Digester.of(algorithm));
+        }
+
+        if (isNative() && digesters.size() > 1 && ((File) file).length() >= PARALLEL_DIGEST_THRESHOLD) {
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            var others = digesters.values().stream().skip(1).toList();
+
+            for (var digester : others) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        digestMapped(digester);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, DIGESTER));
+            }
+
+            try {
+                digestMapped(digesters.values().iterator().next());
+                CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) ex.getCause()).getCause();
+                }
+                throw ex;
+            }
+        } else {
+            process((ByteBuffer buf) -> {
+                for (var digester : digesters.values()) {
+                    digester.update(buf);
+                }
+            });
+        }
+
+        var result = new LinkedHashMap<String, byte[]>();
+
+        for (var e : digesters.entrySet()) {
+            result.put(e.getKey(), e.getValue().digest());
+        }
+
+        return result;
+    }
+
+    private void digestMapped(Digester digester) throws IOException {
+        try ( var ch = FileChannel.open(((File) file).toPath(), READ)) {
+            var size = ch.size();
+
+            for (var position = 0L; position < size; position += MAX_MAPPED_WINDOW) {
+                digester.update(ch.map(READ_ONLY, position, Math.min(MAX_MAPPED_WINDOW, size - position)));
+            }
+        }
+    }
+
+    /**
+     * Returns the digests computed by the scanner.
+     *
+     * @return the digests by algorithm name, empty if none were computed
+     * @see VfsScanner#setDigestAlgorithms(String...)
+     */
+    public Map<String, byte[]> getDigests() {
+        return digests;
+    }
+
+    /**
+     * Sets the digests of the file's content.
+     *
+     * @param digests the digests by algorithm name
+     */
+    public void setDigests(Map<String, byte[]> digests) {
+        this.digests = Collections.unmodifiableMap(new LinkedHashMap<>(digests));
+    }
+
+    /**
+     * Returns the file this file was found to duplicate while scanning.
+     *
+     * @return the file at the same position in an identical archive scanned earlier, or {@code null}
+     * @see VfsScanner#setNestedArchiveDedup(boolean)
+     */
+    public VfsFile getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    /**
+     * Marks the file as a duplicate of another file.
+     *
+     * @param duplicateOf the original file, or {@code null}
+     */
+    public void setDuplicateOf(VfsFile duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+
     /**
      * Reads the file content as a UTF-8 encoded string.
      *
@@ -366,4 +680,391 @@ public class VfsFile {
         this.modified = modified;
     }
 
+    /**
+     * Returns the uncompressed size of this file.
+     *
+     * @return the size in bytes, or {@code null} if unknown
+     */
+    public Long length() {
+        if (length != null) {
+            return length;
+        }
+
+        if (isNative()) {
+            return ((File) file).length();
+        }
+
+        readIndex();
+
+        return length;
+    }
+
+    /**
+     * Sets the uncompressed size of this file.
+     *
+     * @param length the size in bytes, or {@code null} if unknown
+     */
+    public void setLength(Long length) {
+        this.length = length;
+    }
+
+    /**
+     * Returns the CRC-32 of this file's content, as recorded by its archive.
+     *
+     * @return the CRC-32, or {@code null} if unknown
+     */
+    public Long getCrc() {
+        if (crc == null) {
+            readIndex();
+        }
+
+        return crc;
+    }
+
+    /**
+     * Sets the CRC-32 of this file's content.
+     *
+     * @param crc the CRC-32, or {@code null} if unknown
+     */
+    public void setCrc(Long crc) {
+        this.crc = crc;
+    }
+
+    /**
+     * Returns the size of this file's data as stored in its archive.
+     *
+     * @return the compressed size in bytes, or {@code null} if unknown
+     */
+    public Long getCompressedSize() {
+        if (compressedSize == null) {
+            readIndex();
+        }
+
+        return compressedSize;
+    }
+
+    /**
+     * Sets the size of this file's data as stored in its archive.
+     *
+     * @param compressedSize the compressed size in bytes, or {@code null} if unknown
+     */
+    public void setCompressedSize(Long compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Returns the method this file is compressed with in its archive.
+     * <p>
+     * ZIP entries report the name of their compression method, such as
+     * {@code STORED} or {@code DEFLATED}. RAR entries report {@code STORED}
+     * or {@code RAR}.
+     * </p>
+     *
+     * @return the compression method, or {@code null} if unknown
+     */
+    public String getMethod() {
+        if (method == null) {
+            readIndex();
+        }
+
+        return method;
+    }
+
+    /**
+     * Returns the central directory record of an entry of a local ZIP archive.
+     *
+     * @return the record, or {@code null} if this isn't an entry of a local ZIP archive
+     * @throws IOException if the archive can't be read
+     */
+    private ZipIndex.Entry zipEntry() throws IOException {
+        if (archived.length != 1 || !(file instanceof File) || !((File) file).getName().toLowerCase().endsWith(".zip")) {
+            return null;
+        }
+
+        return ZipIndex.forFile((File) file).getEntry(archived[0]);
+    }
+
+    /**
+     * Returns the central directory record of an entry of a local ZIP
+     * archive which is stored without compression or encryption.
+     */
+    private ZipIndex.Entry storedZipEntry() throws IOException {
+        var ze = zipEntry();
+
+        if (ze == null || ze.encrypted || ze.method != ZipEntry.STORED) {
+            return null;
+        }
+
+        return ze;
+    }
+
+    /**
+     * Opens a seekable read-only channel of the file's content.
+     * <p>
+     * Channels are available for local files and for entries of local ZIP
+     * archives stored without compression, which are read straight from the
+     * archive. Unlike streams, channels of entries don't check the CRC-32 of
+     * the data, as they may be read in any order.
+     * </p>
+     *
+     * @return the channel, or {@code null} if the file can't be read through a channel
+     * @throws IOException if an I/O error occurs
+     */
+    public SeekableByteChannel openChannel() throws IOException {
+        if (isNative()) {
+            return FileChannel.open(((File) file).toPath(), READ);
+        }
+
+        var ze = storedZipEntry();
+
+        if (ze == null) {
+            return null;
+        }
+
+        var lease = ArchiveHandles.channel((File) file);
+
+        try {
+            return new ChannelSlice(lease.get(), ZipIndex.getDataOffset(lease.get(), ze), ze.size, lease);
+        } catch (IOException | RuntimeException ex) {
+            lease.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps the whole content of the file into memory.
+     *
+     * @return the read-only mapping, or {@code null} if the file can't be mapped
+     * @throws IOException if an I/O error occurs
+     * @see #map(long, long)
+     */
+    public MappedByteBuffer map() throws IOException {
+        var size = length();
+
+        return size == null ? null : map(0, size);
+    }
+
+    /**
+     * Maps a region of the file's content into memory.
+     * <p>
+     * Local files and entries of local ZIP archives stored without
+     * compression can be mapped, the latter straight from the archive, so
+     * their content is read from the page cache without copying. A single
+     * mapping can't exceed {@link Integer#MAX_VALUE} bytes. A mapping of a
+     * whole entry is checked against the entry's CRC-32, which reads it
+     * once, while mappings of parts of an entry aren't checked.
+     * </p>
+     *
+     * @param position the position of the region within the content
+     * @param size     the size of the region
+     * @return the read-only mapping, or {@code null} if the file can't be mapped
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if the region exceeds the content
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        if (isNative()) {
+            try ( var ch = FileChannel.open(((File) file).toPath(), READ)) {
+                checkRegion(position, size, ch.size());
+
+                return ch.map(READ_ONLY, position, size);
+            }
+        }
+
+        var ze = storedZipEntry();
+
+        if (ze == null) {
+            return null;
+        }
+
+        checkRegion(position, size, ze.size);
+
+        try ( var lease = ArchiveHandles.channel((File) file)) {
+            var mapping = lease.get().map(READ_ONLY, ZipIndex.getDataOffset(lease.get(), ze) + position, size);
+
+            if (position == 0 && size == ze.size) {
+                var crc = new CRC32();
+                crc.update(mapping.duplicate());
+                ZipIndex.check(ze, size, crc.getValue());
+            }
+
+            return mapping;
+        }
+    }
+
+    /**
+     * Writes the file's content to a channel.
+     * <p>
+     * Local files and entries of local ZIP archives stored without
+     * compression are transferred with {@link FileChannel#transferTo}, which
+     * lets the operating system copy the data without passing it through
+     * the JVM, and entries are then checked against their CRC-32 through a
+     * mapping of the data, which the copy has just brought into the page
+     * cache. Other files are copied through a pooled buffer.
+     * </p>
+     *
+     * @param target the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (isNative()) {
+            try ( var ch = FileChannel.open(((File) file).toPath(), READ)) {
+                return transfer(ch, 0, ch.size(), target);
+            }
+        }
+
+        var ze = storedZipEntry();
+
+        if (ze != null) {
+            try ( var lease = ArchiveHandles.channel((File) file)) {
+                var offset = ZipIndex.getDataOffset(lease.get(), ze);
+                var transferred = transfer(lease.get(), offset, ze.size, target);
+
+                ZipIndex.checkStored(lease.get(), offset, ze);
+
+                return transferred;
+            }
+        }
+
+        try ( var is = open()) {
+            return transfer(is, target);
+        }
+    }
+
+    /**
+     * Checks whether {@link #transferTo(WritableByteChannel)} can copy the
+     * content without reading it through a stream.
+     */
+    boolean isDirectlyTransferable() throws IOException {
+        return isNative() || storedZipEntry() != null;
+    }
+
+    private static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        var transferred = 0L;
+
+        while (transferred < count) {
+            var nw = source.transferTo(position + transferred, count - transferred, target);
+
+            if (nw <= 0) {
+                if (position + transferred >= source.size()) {
+                    throw new EOFException("Unexpected end of file at " + (position + transferred));
+                }
+                continue;
+            }
+
+            transferred += nw;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Copies a stream to a channel through a pooled buffer.
+     *
+     * @param in     the stream to read from, which is left open
+     * @param target the channel to write to
+     * @return the number of bytes copied
+     * @throws IOException if an I/O error occurs
+     */
+    static long transfer(InputStream in, WritableByteChannel target) throws IOException {
+        var buf = BufferPool.acquire();
+
+        try {
+            var bb = ByteBuffer.wrap(buf);
+            var transferred = 0L;
+            int nr;
+
+            while ((nr = in.read(buf)) != -1) {
+                bb.clear().limit(nr);
+
+                while (bb.hasRemaining()) {
+                    target.write(bb);
+                }
+
+                transferred += nr;
+            }
+
+            return transferred;
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    private static void checkRegion(long position, long size, long length) {
+        if (position < 0 || size < 0 || position + size > length) {
+            throw new IllegalArgumentException("Region " + position + "+" + size + " exceeds " + length + " bytes");
+        }
+    }
+
+    /**
+     * Fills in unknown attributes of an entry of a local ZIP archive from
+     * the archive's central directory, which is read at most once.
+     */
+    private void readIndex() {
+        if (indexed) {
+            return;
+        }
+
+        indexed = true;
+
+        ZipIndex.Entry ze;
+
+        try {
+            ze = zipEntry();
+        } catch (IOException ex) {
+            return;
+        }
+
+        if (ze == null) {
+            return;
+        }
+
+        if (length == null && ze.size != -1) {
+            length = ze.size;
+        }
+
+        if (compressedSize == null && ze.compressedSize != -1) {
+            compressedSize = ze.compressedSize;
+        }
+
+        if (crc == null && ze.crc != -1) {
+            crc = ze.crc;
+        }
+
+        if (method == null) {
+            method = ZipIndex.methodName(ze.method);
+        }
+    }
+
+    /**
+     * Sets the method this file is compressed with in its archive.
+     *
+     * @param method the compression method, or {@code null} if unknown
+     */
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Checks whether this file is a directory entry of its archive.
+     * <p>
+     * Directory entries have no content of their own. Local directories
+     * are never reported as files, so they don't count.
+     * </p>
+     *
+     * @return {@code true} if the archive lists this entry as a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets whether this file is a directory entry of its archive.
+     *
+     * @param directory {@code true} if the archive lists this entry as a directory
+     */
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
 }
@@ -0,0 +1,44 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Exception reporting errors that occurred during an asynchronous scan.
+ * <p>
+ * Every error collected by the {@link ScanHandle} is available through
+ * {@link #getErrors()} and is also added as a suppressed exception.
+ * </p>
+ *
+ * @author m
+ */
+public class VfsScanException extends IOException {
+
+    private final List<Throwable> errors;
+
+    /**
+     * Creates a new exception aggregating the specified errors.
+     *
+     * @param errors the errors that occurred during scanning
+     */
+    public VfsScanException(List<Throwable> errors) {
+        super(errors.size() + " error(s) occurred during scanning", errors.isEmpty() ? null : errors.get(0));
+        this.errors = List.copyOf(errors);
+        for (var i = 1; i < this.errors.size(); i++) {
+            addSuppressed(this.errors.get(i));
+        }
+    }
+
+    /**
+     * Returns the errors that occurred during scanning.
+     *
+     * @return an unmodifiable list of errors
+     */
+    public List<Throwable> getErrors() {
+        return errors;
+    }
+
+}
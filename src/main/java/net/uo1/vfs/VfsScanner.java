@@ -23,25 +23,53 @@
  */
 package net.uo1.vfs;
 
-import com.github.junrar.Archive;
-import com.github.junrar.exception.RarException;
 import com.github.junrar.rarfile.FileHeader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import static java.io.File.createTempFile;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import static java.lang.System.arraycopy;
-import java.util.Enumeration;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import static java.util.Arrays.copyOf;
+import static java.util.Comparator.comparingLong;
+import java.util.HashSet;
+import java.util.List;
+import static java.util.Objects.requireNonNull;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.logging.Level;
+import java.util.function.Function;
+import static java.util.logging.Level.FINE;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import static org.apache.commons.io.IOUtils.copy;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import static org.apache.commons.io.IOUtils.consume;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
 /**
  * Scans files and archives recursively, invoking a consumer for each file found.
@@ -50,7 +78,9 @@ import static org.apache.commons.io.IOUtils.copy;
  * <ul>
  *   <li>Local filesystem directories and files</li>
  *   <li>ZIP archives</li>
+ *   <li>TAR archives, plain or compressed with GZip, BZip2 or ZStd</li>
  *   <li>RAR archives</li>
+ *   <li>Files compressed with GZip, BZip2 or ZStd, which are decompressed on the fly</li>
  *   <li>Nested archives (archives within archives)</li>
  * </ul>
  * </p>
@@ -59,216 +89,1377 @@ import static org.apache.commons.io.IOUtils.copy;
  * The scanner implements {@link AutoCloseable} and should be used with
  * try-with-resources or explicitly closed when done.
  * </p>
+ * <p>
+ * The number of tasks submitted to the executor but not yet finished is
+ * limited (see {@link #setMaxPendingTasks(int)}). When the limit is reached,
+ * the submitting thread runs the task itself, so memory use stays flat
+ * regardless of the number of directory children or archive entries.
+ * </p>
+ * <p>
+ * {@link #scanAsync(VfsFile)} and its overloads return a {@link ScanHandle}
+ * which completes once the whole scan tree is finished, so a single scanner
+ * can be reused for many scans without closing it.
+ * </p>
+ * <p>
+ * Scanners created by {@link #withVirtualThreads(Consumer)} run every task
+ * in its own virtual thread, which suits scans of URLs and network mounts
+ * where threads are mostly blocked on I/O. Archives and their entries, which
+ * are mostly decompressed, are then scanned by a separate bounded pool of
+ * platform threads, so decompression never occupies the carrier threads of
+ * virtual threads.
+ * </p>
  *
  * @author Mikhail Yevchenko &lt;spam@azazar.com&gt;
  */
 public class VfsScanner implements AutoCloseable {
 
-    private static final Logger LOG = Logger.getLogger(VfsScanner.class.getName());
-    
-    protected volatile VfsInterruptException interruptException = null;
+    private static final Logger LOG = Logger.getLogger(VfsScanner.class.getName());
+
+    /**
+     * Default maximum number of tasks submitted to the executor and not yet finished.
+     */
+    public static final int DEFAULT_MAX_PENDING_TASKS = 1024;
+
+    /**
+     * Largest nested archive buffer limit, leaving room in the largest
+     * possible array for the byte which tells that an archive exceeds it.
+     */
+    public static final long MAX_NESTED_ARCHIVE_BUFFER_LIMIT = Integer.MAX_VALUE - 9;
+
+    private static final byte RAR_STORED = 0x30;
+
+    // nested archives a scan keeps buffered at once, in units of the buffer limit
+    private static final long BUFFERED_ARCHIVES = Runtime.getRuntime().availableProcessors();
+    
+    protected volatile VfsInterruptException interruptException = null;
+
+    protected Consumer<VfsFile> consumer;
+    protected ExecutorService executor;
+    protected ExecutorService decompressionExecutor;
+    protected volatile Semaphore pendingTasks;
+    private volatile int maxPendingTasks;
+    private volatile long nestedArchiveBufferLimit = 0;
+    private volatile ScanFilter filter = ScanFilter.ALL;
+    private volatile ScanManifest manifest = null;
+    private volatile boolean metadataOnly = false;
+    private volatile String[] digestAlgorithms = new String[0];
+    private volatile boolean nestedArchiveDedup = false;
+    final Set<ScanHandle> handles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new VfsScanner with separate executors for I/O-bound and
+     * CPU-bound tasks.
+     * <p>
+     * Files, directories and archives are scanned by {@code executor}, while
+     * archive entries, which are mostly decompressed, are scanned by
+     * {@code decompressionExecutor}. Archives reached in a virtual thread
+     * are handed over to {@code decompressionExecutor} as well.
+     * </p>
+     *
+     * @param consumer              the consumer to invoke for each file found
+     * @param executor              the executor service for I/O-bound tasks
+     * @param decompressionExecutor the executor service for archive entries,
+     *                              or {@code null} to use {@code executor}
+     * @param maxPendingTasks       the maximum number of submitted but unfinished tasks
+     */
+    public VfsScanner(Consumer<VfsFile> consumer, ExecutorService executor, ExecutorService decompressionExecutor, int maxPendingTasks) {
+        this.consumer = consumer;
+        this.executor = executor;
+        this.decompressionExecutor = decompressionExecutor;
+        setMaxPendingTasks(maxPendingTasks);
+    }
+
+    /**
+     * Creates a new VfsScanner with the specified consumer, executor and pending task limit.
+     *
+     * @param consumer        the consumer to invoke for each file found
+     * @param executor        the executor service for parallel processing
+     * @param maxPendingTasks the maximum number of submitted but unfinished tasks
+     */
+    public VfsScanner(Consumer<VfsFile> consumer, ExecutorService executor, int maxPendingTasks) {
+        this(consumer, executor, null, maxPendingTasks);
+    }
+
+    /**
+     * Creates a new VfsScanner with the specified consumer and executor.
+     *
+     * @param consumer the consumer to invoke for each file found
+     * @param executor the executor service for parallel processing
+     */
+    public VfsScanner(Consumer<VfsFile> consumer, ExecutorService executor) {
+        this(consumer, executor, DEFAULT_MAX_PENDING_TASKS);
+    }
+
+    /**
+     * Creates a new VfsScanner with the specified consumer and a default work-stealing pool.
+     *
+     * @param consumer the consumer to invoke for each file found
+     */
+    public VfsScanner(Consumer<VfsFile> consumer) {
+        this(consumer, Executors.newWorkStealingPool());
+    }
+
+    /**
+     * Creates a scanner for I/O-bound scans, running every task in its own
+     * virtual thread and decompressing archives in a pool of one
+     * platform thread per processor.
+     *
+     * @param consumer the consumer to invoke for each file found
+     * @return the scanner
+     */
+    public static VfsScanner withVirtualThreads(Consumer<VfsFile> consumer) {
+        return withVirtualThreads(consumer, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a scanner for I/O-bound scans, running every task in its own
+     * virtual thread and decompressing archives in a bounded pool of
+     * platform threads.
+     * <p>
+     * The number of concurrent reads is still bounded by the pending task
+     * limit, which may be raised well above the default for remote scans.
+     * </p>
+     *
+     * @param consumer             the consumer to invoke for each file found
+     * @param decompressionThreads the number of platform threads decompressing archives
+     * @return the scanner
+     */
+    public static VfsScanner withVirtualThreads(Consumer<VfsFile> consumer, int decompressionThreads) {
+        return new VfsScanner(consumer, Executors.newVirtualThreadPerTaskExecutor(), Executors.newFixedThreadPool(decompressionThreads), DEFAULT_MAX_PENDING_TASKS);
+    }
+
+    /**
+     * Returns the maximum number of tasks submitted to the executor and not yet finished.
+     *
+     * @return the pending task limit
+     */
+    public int getMaxPendingTasks() {
+        return maxPendingTasks;
+    }
+
+    /**
+     * Sets the maximum number of tasks submitted to the executor and not yet finished.
+     * <p>
+     * When the limit is reached, new tasks are run by the submitting thread.
+     * The limit should be set before scanning is started.
+     * </p>
+     *
+     * @param maxPendingTasks the pending task limit, must be positive
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public void setMaxPendingTasks(int maxPendingTasks) {
+        if (maxPendingTasks <= 0) {
+            throw new IllegalArgumentException("maxPendingTasks: " + maxPendingTasks);
+        }
+        this.maxPendingTasks = maxPendingTasks;
+        this.pendingTasks = new Semaphore(maxPendingTasks);
+    }
+
+    /**
+     * Returns the size up to which ZIP archives nested in other archives are
+     * read into memory to scan their entries in parallel.
+     *
+     * @return the size limit in bytes, or {@code 0} if nested archives are always streamed
+     */
+    public long getNestedArchiveBufferLimit() {
+        return nestedArchiveBufferLimit;
+    }
+
+    /**
+     * Sets the size up to which ZIP archives nested in other archives are
+     * read into memory to scan their entries in parallel.
+     * <p>
+     * A buffered archive is indexed through its central directory and its
+     * entries are scanned by separate tasks, like those of local archives.
+     * Larger archives are scanned sequentially while being streamed.
+     * </p>
+     * <p>
+     * A buffer is held until the last task scanning the archive's entries
+     * has finished, which may be long after the archive itself was read, as
+     * the tasks wait in the executor's queue. Every scan therefore reserves
+     * the limit for each archive it buffers and keeps at most the limit
+     * times the number of available processors reserved at once; further
+     * nested archives are streamed until earlier buffers are released.
+     * </p>
+     *
+     * @param limit the size limit in bytes, at most
+     *              {@link #MAX_NESTED_ARCHIVE_BUFFER_LIMIT}, or {@code 0} to
+     *              always stream nested archives
+     * @throws IllegalArgumentException if the limit is negative or too large
+     */
+    public void setNestedArchiveBufferLimit(long limit) {
+        if (limit < 0 || limit > MAX_NESTED_ARCHIVE_BUFFER_LIMIT) {
+            throw new IllegalArgumentException("limit: " + limit);
+        }
+        this.nestedArchiveBufferLimit = limit;
+    }
+
+    /**
+     * Returns the filter selecting the files to scan.
+     *
+     * @return the filter
+     */
+    public ScanFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets the filter selecting the files to scan.
+     * <p>
+     * Files and archive entries rejected by the filter are skipped before
+     * they're opened, and directories and archives rejected as containers
+     * aren't traversed at all. The filter applies to scans started after
+     * it's set.
+     * </p>
+     *
+     * @param filter the filter, or {@link ScanFilter#ALL} to scan everything
+     */
+    public void setFilter(ScanFilter filter) {
+        this.filter = requireNonNull(filter);
+    }
+
+    /**
+     * Returns the manifest used for incremental scanning.
+     *
+     * @return the manifest, or {@code null} if every file is scanned
+     */
+    public ScanManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Sets the manifest used for incremental scanning.
+     * <p>
+     * Files and archives which haven't changed since they were recorded in
+     * the manifest are skipped. Files are recorded once the consumer has
+     * processed them, archives once a scan started by {@link #scanAsync(VfsFile)}
+     * or one of its overloads completes without their entries failing.
+     * The manifest isn't saved by the scanner. The manifest applies to scans
+     * started after it's set.
+     * </p>
+     *
+     * @param manifest the manifest, or {@code null} to scan every file
+     */
+    public void setManifest(ScanManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Checks whether archive entries are listed from archive headers alone.
+     *
+     * @return {@code true} if entry content is never read while scanning
+     */
+    public boolean isMetadataOnly() {
+        return metadataOnly;
+    }
+
+    /**
+     * Sets whether archive entries are listed from archive headers alone.
+     * <p>
+     * In this mode the consumer receives archive entries with their size,
+     * compressed size, CRC, method and modification time taken from ZIP
+     * central directories and TAR and RAR headers, and no entry is
+     * decompressed unless the consumer opens it. Nested archives are
+     * reported as files rather than traversed. The mode applies to scans
+     * started after it's set.
+     * </p>
+     * <p>
+     * Streamed ZIP entries whose sizes are only stored after their data, and
+     * entries of compressed TAR archives, still have to be decompressed to
+     * find the next header.
+     * </p>
+     *
+     * @param metadataOnly {@code true} to list archives without reading entry content
+     */
+    public void setMetadataOnly(boolean metadataOnly) {
+        this.metadataOnly = metadataOnly;
+    }
+
+    /**
+     * Returns the algorithms of the digests computed for every file found.
+     *
+     * @return the algorithm names, empty if no digests are computed
+     */
+    public String[] getDigestAlgorithms() {
+        return digestAlgorithms.clone();
+    }
+
+    /**
+     * Sets the algorithms of the digests computed for every file found.
+     * <p>
+     * Digests are made available through {@link VfsFile#getDigests()}.
+     * Archive entries are digested from the stream the scanner reads them
+     * from, so the entries of sequentially read archives, such as TAR
+     * archives, are still decompressed only once. Entries of up to 1 MiB are
+     * digested before the consumer is called and the consumer reads them
+     * from memory. Larger entries are digested while the consumer reads
+     * them, so their digests are only set once the consumer has returned,
+     * in time for the manifest and for replayed duplicates. Other files are
+     * digested before the consumer is called. The algorithms apply to scans
+     * started after they're set.
+     * </p>
+     *
+     * @param algorithms the algorithm names, as accepted by {@link VfsFile#digest(String...)}
+     * @throws IllegalArgumentException if an algorithm isn't supported
+     */
+    public void setDigestAlgorithms(String... algorithms) {
+        for (var algorithm : algorithms) {
+            Digester.of(algorithm);
+        }
+        this.digestAlgorithms = algorithms.clone();
+    }
+
+    /**
+     * Checks whether repeated nested archives are scanned only once.
+     *
+     * @return {@code true} if duplicates of nested archives are replayed
+     */
+    public boolean isNestedArchiveDedup() {
+        return nestedArchiveDedup;
+    }
+
+    /**
+     * Sets whether repeated nested archives are scanned only once.
+     * <p>
+     * Nested archives are fingerprinted by the size and CRC stored in the
+     * headers of their containing archive. The files found in the first
+     * archive with a given fingerprint are remembered for the rest of the
+     * scan, and an archive with the same fingerprint found later isn't
+     * decompressed: its files are reported under its own path, with the
+     * metadata and digests of the originals and with
+     * {@link VfsFile#getDuplicateOf()} pointing to them. Archives whose size
+     * or CRC isn't known are always scanned, as are archives of more than
+     * 16384 files and archives found once a million files are remembered.
+     * </p>
+     * <p>
+     * While deduplicating, nested archives are scanned sequentially by the
+     * task that found them, regardless of {@link #getNestedArchiveBufferLimit()}.
+     * The setting applies to scans started after it's set.
+     * </p>
+     *
+     * @param dedup {@code true} to replay duplicates of nested archives
+     */
+    public void setNestedArchiveDedup(boolean dedup) {
+        this.nestedArchiveDedup = dedup;
+    }
+
+    /**
+     * Checks whether a file is an archive or compressed file traversed by the scanner.
+     *
+     * @param file the file
+     * @return {@code true} if the scanner looks inside the file
+     */
+    protected static boolean isArchive(VfsFile file) {
+        var p = file.getLastPath().toLowerCase();
+
+        return p.endsWith(".zip") || p.endsWith(".rar") || AutoOpener.isTar(p) || AutoOpener.isCompressed(p);
+    }
+
+    /**
+     * Submits a task to the executor, or runs it in the calling thread if
+     * the pending task limit has been reached or the executor rejects it.
+     * <p>
+     * Running rejected tasks in place lets scans that are already running
+     * finish after {@link #close()} has shut the executor down.
+     * </p>
+     *
+     * @param task the task to run
+     */
+    protected void submit(Runnable task) {
+        submit(executor, task);
+    }
+
+    /**
+     * Submits a task to the specified executor, or runs it in the calling
+     * thread if the pending task limit has been reached or the executor
+     * rejects it.
+     *
+     * @param executor the executor to run the task
+     * @param task     the task to run
+     */
+    protected void submit(ExecutorService executor, Runnable task) {
+        var permits = pendingTasks;
+
+        if (!permits.tryAcquire()) {
+            task.run();
+            return;
+        }
+
+        try {
+            executor.submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            task.run();
+        }
+    }
+
+    /**
+     * Submits a scanning task belonging to the specified scan.
+     * <p>
+     * Errors thrown by the task are reported to the handle, and the handle
+     * is notified when the task is finished.
+     * </p>
+     *
+     * @param handle the scan the task belongs to
+     * @param source the object being scanned, used in error reports
+     * @param task   the task to run
+     */
+    protected void fork(ScanHandle handle, Object source, ScanTask task) {
+        fork(executor, handle, source, task);
+    }
+
+    /**
+     * Submits a task scanning an archive entry, running it in the
+     * decompression executor if there is one.
+     *
+     * @param handle the scan the task belongs to
+     * @param source the object being scanned, used in error reports
+     * @param task   the task to run
+     */
+    protected void forkEntry(ScanHandle handle, Object source, ScanTask task) {
+        fork(decompressionExecutor != null ? decompressionExecutor : executor, handle, source, task);
+    }
+
+    private void fork(ExecutorService executor, ScanHandle handle, Object source, ScanTask task) {
+        handle.fork();
+
+        submit(executor, () -> {
+            try {
+                handle.checkInterrupted();
+                task.run();
+            } catch (VfsInterruptException ex) {
+                handle.interrupt(ex);
+            } catch (Throwable ex) {
+                // errors too, or the scan would complete without reporting them
+                handle.error(source, ex);
+            } finally {
+                handle.done();
+            }
+        });
+    }
+
+    /**
+     * Starts scanning a VfsFile asynchronously.
+     *
+     * @param file the file to scan
+     * @return the handle tracking the scan
+     */
+    public ScanHandle scanAsync(VfsFile file) {
+        return scanAsync(file, consumer);
+    }
+
+    /**
+     * Starts scanning a VfsFile asynchronously, delivering files to the specified consumer.
+     * <p>
+     * This allows a single scanner and its executor to be shared by many
+     * independent scans.
+     * </p>
+     *
+     * @param file     the file to scan
+     * @param consumer the consumer to invoke for each file found
+     * @return the handle tracking the scan
+     */
+    public ScanHandle scanAsync(VfsFile file, Consumer<VfsFile> consumer) {
+        return startAsync(file, consumer, h -> scan(h, file, new AutoStream(file::open), true));
+    }
+
+    /**
+     * Starts scanning a local filesystem file or directory asynchronously.
+     *
+     * @param file the file or directory to scan
+     * @return the handle tracking the scan
+     */
+    public ScanHandle scanAsync(File file) {
+        return scanAsync(file, consumer);
+    }
+
+    /**
+     * Starts scanning a local filesystem file or directory asynchronously,
+     * delivering files to the specified consumer.
+     *
+     * @param file     the file or directory to scan
+     * @param consumer the consumer to invoke for each file found
+     * @return the handle tracking the scan
+     */
+    public ScanHandle scanAsync(File file, Consumer<VfsFile> consumer) {
+        return startAsync(file, consumer, h -> scan(h, file));
+    }
+
+    /**
+     * Starts extracting every file found in a local file or directory to a
+     * target directory.
+     * <p>
+     * Files are written concurrently by the scanner's tasks, keeping their
+     * paths relative to the scanned directory, or to the scanned file's
+     * directory if a single file is scanned. Archive entries are written to
+     * a directory named after their archive, so {@code data.zip/dir/a.txt}
+     * ends up in {@code target/data.zip/dir/a.txt}. Entries whose names would
+     * place them outside the target directory are reported as errors.
+     * Directory entries are created as directories.
+     * The scanner's filter and manifest apply as for any other scan.
+     * </p>
+     *
+     * @param source    the file or directory to extract
+     * @param targetDir the directory to write files to
+     * @return the handle tracking the extraction
+     */
+    public ScanHandle extractAsync(File source, File targetDir) {
+        var base = source.getAbsoluteFile().toPath();
+        var root = source.isDirectory() || base.getParent() == null ? base : base.getParent();
+
+        return startAsync(source, f -> {
+            var name = root.relativize(((File) f.file).getAbsoluteFile().toPath()).toString();
+
+            extract(f, name, 0, targetDir);
+        }, h -> scan(h, source));
+    }
+
+    /**
+     * Starts extracting every file found in a VfsFile to a target directory.
+     * <p>
+     * Files are written as described for {@link #extractAsync(File, File)},
+     * relative to the directory containing the VfsFile.
+     * </p>
+     *
+     * @param source    the file to extract
+     * @param targetDir the directory to write files to
+     * @return the handle tracking the extraction
+     */
+    public ScanHandle extractAsync(VfsFile source, File targetDir) {
+        var name = baseName(source);
+        var depth = source.archived.length;
+
+        return startAsync(source, f -> extract(f, name, depth, targetDir), h -> scan(h, source, new AutoStream(source::open), true));
+    }
+
+    /**
+     * Writes a file to its place under the target directory.
+     *
+     * @param file      the file to write
+     * @param name      the path of the outermost file of the extracted tree
+     * @param depth     the number of archive levels above the extracted tree
+     * @param targetDir the target directory
+     */
+    private static void extract(VfsFile file, String name, int depth, File targetDir) {
+        var target = targetDir.toPath().toAbsolutePath().normalize();
+        var out = target.resolve(name);
+
+        for (var i = depth; i < file.archived.length; i++) {
+            out = out.resolve(file.archived[i]);
+        }
+
+        out = out.normalize();
+
+        try {
+            // guards against entry names such as ../../etc/passwd
+            if (!out.startsWith(target) || out.equals(target)) {
+                throw new IOException(file + " would be extracted outside of " + target);
+            }
+
+            if (file.isDirectory()) {
+                // files extracted into the directory would change its modification time anyway
+                Files.createDirectories(out);
+                return;
+            }
+
+            Files.createDirectories(out.getParent());
+
+            try ( var ch = FileChannel.open(out, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                file.transferTo(ch);
+            }
+
+            var modified = file.lastModified();
+
+            if (modified != null && modified > 0) {
+                out.toFile().setLastModified(modified);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private ScanHandle startAsync(Object source, Consumer<VfsFile> consumer, RootTask root) {
+        var handle = new ScanHandle(this, consumer, true);
+
+        handles.add(handle);
+
+        if (interruptException != null) {
+            handle.abort(interruptException);
+            return handle;
+        }
+
+        fork(handle, source, () -> root.run(handle));
+        handle.done();
+
+        return handle;
+    }
+
+    /**
+     * Scans a VfsFile, recursively processing archives.
+     *
+     * @param file the file to scan
+     * @throws IOException if an I/O error occurs
+     */
+    public void scan(VfsFile file) throws IOException {
+        scan(file, new AutoStream(file::open), true);
+    }
+
+    /**
+     * Scans a VfsFile using the provided input stream.
+     *
+     * @param file the file being scanned
+     * @param in   the input stream to read from
+     * @throws IOException if an I/O error occurs
+     */
+    public void scan(VfsFile file, InputStream in) throws IOException {
+        scan(new ScanHandle(this, consumer, false), file, in);
+    }
+
+    /**
+     * Scans a VfsFile as a part of the specified scan.
+     *
+     * @param handle the scan the file belongs to
+     * @param file   the file being scanned
+     * @param in     the input stream to read from
+     * @throws IOException if an I/O error occurs
+     */
+    protected void scan(ScanHandle handle, VfsFile file, InputStream in) throws IOException {
+        handle.checkInterrupted();
+
+        if (handle.accepts(file, isArchive(file))) {
+            scanAccepted(handle, file, in);
+        }
+    }
+
+    /**
+     * Scans a VfsFile which has already been checked against the filter.
+     *
+     * @param handle the scan the file belongs to
+     * @param file   the file being scanned
+     * @param in     the input stream to read from
+     * @throws IOException if an I/O error occurs
+     */
+    private void scanAccepted(ScanHandle handle, VfsFile file, InputStream in) throws IOException {
+        if (handle.dedup && !handle.metadataOnly && file.archived.length > 0 && isArchive(file)) {
+            var fingerprint = fingerprint(file);
+
+            if (fingerprint != null) {
+                var recording = handle.getRecording(fingerprint);
+
+                if (recording != null) {
+                    replay(handle, file, recording);
+                    return;
+                }
+
+                if (handle.startRecording(fingerprint, file)) {
+                    var complete = false;
+
+                    try {
+                        scanContent(handle, file, in);
+                        complete = true;
+                    } finally {
+                        handle.finishRecording(fingerprint, file, complete);
+                    }
+                    return;
+                }
+            }
+        }
+
+        scanContent(handle, file, in);
+    }
+
+    /**
+     * Returns the key identifying copies of a nested archive.
+     *
+     * @param file the archive
+     * @return the fingerprint, or {@code null} if the archive's size or CRC is unknown
+     */
+    private static String fingerprint(VfsFile file) {
+        var length = file.length();
+        var crc = file.getCrc();
+
+        if (length == null || crc == null) {
+            return null;
+        }
+
+        var name = file.getLastName().toLowerCase();
+
+        return length + ":" + Long.toHexString(crc) + ":" + name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Reports the files recorded for an identical archive as files of the specified one.
+     *
+     * @param handle    the scan the archive belongs to
+     * @param archive   the duplicate archive
+     * @param recording the files found in the original archive
+     */
+    private void replay(ScanHandle handle, VfsFile archive, ScanHandle.RecordedArchive recording) {
+        var depth = recording.archive.archived.length;
+
+        List<VfsFile> entries;
+
+        synchronized (recording.entries) {
+            entries = new ArrayList<>(recording.entries);
+        }
+
+        for (var original : entries) {
+            handle.checkInterrupted();
+
+            var archived = copyOf(archive.archived, archive.archived.length + original.archived.length - depth);
+            System.arraycopy(original.archived, depth, archived, archive.archived.length, original.archived.length - depth);
+
+            var copy = new VfsFile(archive.file, archived);
+            copy.setLastModified(original.lastModified());
+            copy.setLength(original.length());
+            copy.setCompressedSize(original.getCompressedSize());
+            copy.setCrc(original.getCrc());
+            copy.setMethod(original.getMethod());
+            copy.setDirectory(original.isDirectory());
+            copy.setDigests(original.getDigests());
+            copy.setDuplicateOf(original);
+
+            if (handle.accepts(copy, false)) {
+                handle.accept(copy);
+            }
+        }
+    }
+
+    /**
+     * Scans the content of a VfsFile, traversing it if it's an archive.
+     *
+     * @param handle the scan the file belongs to
+     * @param file   the file being scanned
+     * @param in     the input stream to read from
+     * @throws IOException if an I/O error occurs
+     */
+    private void scanContent(ScanHandle handle, VfsFile file, InputStream in) throws IOException {
+        if (decompressionExecutor != null && isArchive(file) && Thread.currentThread().isVirtual()) {
+            var stream = in;
+
+            runDecompressing(() -> scanContent(handle, file, stream));
+            return;
+        }
+
+        if (handle.metadataOnly && isArchive(file)) {
+            try {
+                list(handle, file, in);
+            } catch (VfsInterruptException ex) {
+                handle.interrupt(ex);
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                handle.error(file, ex);
+            }
+            return;
+        }
+
+        var p = file.getLastPath().toLowerCase();
+
+        if (p.endsWith(".zip")) {
+            if (file.isNative()) {
+                var zf = (File) file.file;
+
+                scanZipIndex(handle, file, ZipIndex.forFile(zf), ze -> () -> ZipIndex.open(zf, ze), null);
+            } else {
+                // deduplication records nested archives while they're scanned, which requires a single task
+                var limit = handle.dedup ? 0 : nestedArchiveBufferLimit;
+                var buffered = new byte[0];
+
+                if (limit > 0 && handle.reserveBuffer(limit, limit > Long.MAX_VALUE / BUFFERED_ARCHIVES ? Long.MAX_VALUE : limit * BUFFERED_ARCHIVES)) {
+                    var reserved = limit;
+
+                    try {
+                        buffered = in.readNBytes((int) limit + 1);
+
+                        if (buffered.length <= limit) {
+                            handle.releaseBuffer(limit - buffered.length);
+                            reserved = buffered.length;
+
+                            try {
+                                var data = buffered;
+                                var index = ZipIndex.read(new SeekableInMemoryByteChannel(data));
+                                var size = reserved;
+
+                                // the entry tasks release the buffer once the last of them is done
+                                reserved = 0;
+                                scanZipIndex(handle, file, index, ze -> () -> ZipIndex.open(new SeekableInMemoryByteChannel(data), ze, true), () -> handle.releaseBuffer(size));
+                            } catch (VfsInterruptException ex) {
+                                handle.interrupt(ex);
+                                throw ex;
+                            } catch (IOException | RuntimeException ex) {
+                                handle.error(file, ex);
+                            }
+                            return;
+                        }
+                    } finally {
+                        handle.releaseBuffer(reserved);
+                    }
+                }
+
+                if (buffered.length > 0) {
+                    in = new SequenceInputStream(new ByteArrayInputStream(buffered), in);
+                }
+
+                try ( var zis = new ZipInputStream(CloseShieldInputStream.wrap(in))) {
+                    ZipEntry e;
+                    while ((e = zis.getNextEntry()) != null) {
+                        var df = entry(file, e);
+
+                        scanStreamEntry(handle, df, zis);
+                    }
+                } catch (VfsInterruptException ex) {
+                    handle.interrupt(ex);
+                    throw ex;
+                } catch (IOException | RuntimeException ex) {
+                    handle.error(file, ex);
+                }
+            }
+            return;
+        }
+
+        if (AutoOpener.isTar(p)) {
+            try ( var tis = new TarArchiveInputStream(AutoOpener.openTar(p, CloseShieldInputStream.wrap(in)))) {
+                TarArchiveEntry e;
+                while ((e = tis.getNextEntry()) != null) {
+                    if (!e.isFile()) {
+                        continue;
+                    }
+
+                    var df = entry(file, e);
+
+                    scanStreamEntry(handle, df, tis);
+                }
+            } catch (VfsInterruptException ex) {
+                handle.interrupt(ex);
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                handle.error(file, ex);
+            }
+            return;
+        }
+
+        if (AutoOpener.isCompressed(p)) {
+            var name = baseName(file);
+            var df = entry(file, name.substring(0, name.lastIndexOf('.')));
+            df.setLastModified(file.lastModified());
+            df.setCompressedSize(file.length());
+
+            try ( var dis = AutoOpener.decompress(p, CloseShieldInputStream.wrap(in))) {
+                scanStreamEntry(handle, df, dis);
+            } catch (VfsInterruptException ex) {
+                handle.interrupt(ex);
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                handle.error(file, ex);
+            }
+            return;
+        }
+
+        if (p.endsWith(".rar")) {
+            try {
+                if (file.isNative()) {
+                    scanRar(handle, file, (File) file.file);
+                } else {
+                    var tempFile = stage(file, in);
+
+                    try {
+                        try ( var rar = new RarEntries.Handle(tempFile)) {
+                            scanRarSequentially(handle, file, rar);
+                        }
+                    } finally {
+                        tempFile.delete();
+                    }
+                }
+            } catch (VfsInterruptException ex) {
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                handle.error(file, ex);
+            }
+
+            return;
+        }
+
+        handle.accept(file, in);
+    }
+
+    /**
+     * Reports the entries of an archive from its headers without reading their content.
+     *
+     * @param handle the scan the archive belongs to
+     * @param file   the archive
+     * @param in     the archive's data, read only if it isn't a local ZIP or RAR archive
+     * @throws IOException if the archive can't be read
+     */
+    private void list(ScanHandle handle, VfsFile file, InputStream in) throws IOException {
+        var p = file.getLastPath().toLowerCase();
+
+        if (p.endsWith(".zip")) {
+            if (file.isNative()) {
+                for (var ze : ZipIndex.forFile((File) file.file).getEntries()) {
+                    listEntry(handle, entry(file, ze));
+                }
+            } else {
+                try ( var zis = new ZipArchiveInputStream(CloseShieldInputStream.wrap(in), "UTF-8", true, true)) {
+                    ZipArchiveEntry e;
+                    while ((e = zis.getNextEntry()) != null) {
+                        listEntry(handle, entry(file, e));
+                    }
+                }
+            }
+        } else if (AutoOpener.isTar(p)) {
+            try ( var tis = new TarArchiveInputStream(AutoOpener.openTar(p, CloseShieldInputStream.wrap(in)))) {
+                TarArchiveEntry e;
+                while ((e = tis.getNextEntry()) != null) {
+                    if (e.isFile()) {
+                        listEntry(handle, entry(file, e));
+                    }
+                }
+            }
+        } else if (AutoOpener.isCompressed(p)) {
+            var name = baseName(file);
+            var df = entry(file, name.substring(0, name.lastIndexOf('.')));
+            df.setLastModified(file.lastModified());
+            df.setCompressedSize(file.length());
+
+            listEntry(handle, df);
+        } else if (file.isNative()) {
+            try ( var lease = RarEntries.lease((File) file.file)) {
+                for (var fh : lease.get().headers) {
+                    listEntry(handle, entry(file, fh));
+                }
+            }
+        } else {
+            var tempFile = stage(file, in);
 
-    protected Consumer<VfsFile> consumer;
-    protected ExecutorService executor;
+            try {
+                try ( var rar = new RarEntries.Handle(tempFile)) {
+                    for (var fh : rar.headers) {
+                        listEntry(handle, entry(file, fh));
+                    }
+                }
+            } finally {
+                tempFile.delete();
+            }
+        }
+    }
 
     /**
-     * Creates a new VfsScanner with the specified consumer and executor.
+     * Copies an archive which isn't a local file to a temporary file.
+     * <p>
+     * Archives stored without compression in local ZIP archives are copied
+     * by the operating system without reading them through the stream.
+     * </p>
      *
-     * @param consumer the consumer to invoke for each file found
-     * @param executor the executor service for parallel processing
+     * @param file the archive
+     * @param in   the archive's data
+     * @return the temporary file, which must be deleted by the caller
+     * @throws IOException if an I/O error occurs
      */
-    public VfsScanner(Consumer<VfsFile> consumer, ExecutorService executor) {
-        this.consumer = consumer;
-        this.executor = executor;
+    private static File stage(VfsFile file, InputStream in) throws IOException {
+        var tempFile = createTempFile("dfs", ".rar");
+
+        try ( var out = FileChannel.open(tempFile.toPath(), WRITE)) {
+            if (file.isDirectlyTransferable()) {
+                file.transferTo(out);
+            } else {
+                VfsFile.transfer(in, out);
+            }
+        } catch (IOException | RuntimeException ex) {
+            tempFile.delete();
+            throw ex;
+        }
+
+        return tempFile;
+    }
+
+    private void listEntry(ScanHandle handle, VfsFile entry) {
+        handle.checkInterrupted();
+
+        if (handle.accepts(entry, false)) {
+            handle.accept(entry);
+        }
     }
 
     /**
-     * Creates a new VfsScanner with the specified consumer and a default work-stealing pool.
+     * Creates a file representing an entry of the specified archive.
      *
-     * @param consumer the consumer to invoke for each file found
+     * @param archive the archive containing the entry
+     * @param name    the entry name
+     * @return the entry file
      */
-    public VfsScanner(Consumer<VfsFile> consumer) {
-        this.consumer = consumer;
-        this.executor = Executors.newWorkStealingPool();
+    private static VfsFile entry(VfsFile archive, String name) {
+        var deepPath = copyOf(archive.archived, archive.archived.length + 1);
+        deepPath[archive.archived.length] = name;
+        return new VfsFile(archive.file, deepPath);
     }
 
     /**
-     * Scans a VfsFile, recursively processing archives.
-     *
-     * @param file the file to scan
-     * @throws IOException if an I/O error occurs
+     * Creates a file representing an entry listed by a ZIP central directory.
      */
-    public void scan(VfsFile file) throws IOException {
-        scan(file, new AutoStream(file::open));
+    private static VfsFile entry(VfsFile archive, ZipIndex.Entry ze) {
+        var f = entry(archive, ze.name);
+        f.setLastModified(ze.time);
+        f.setLength(ze.size == -1 ? null : ze.size);
+        f.setCompressedSize(ze.compressedSize == -1 ? null : ze.compressedSize);
+        f.setCrc(ze.crc == -1 ? null : ze.crc);
+        f.setMethod(ZipIndex.methodName(ze.method));
+        f.setDirectory(ze.isDirectory());
+        return f;
     }
 
     /**
-     * Scans a VfsFile using the provided input stream.
+     * Creates a file representing an entry of a streamed ZIP archive.
+     */
+    private static VfsFile entry(VfsFile archive, ZipArchiveEntry ze) {
+        var f = entry(archive, ze.getName());
+        f.setLastModified(ze.getTime());
+        f.setLength(ze.getSize() == -1 ? null : ze.getSize());
+        f.setCompressedSize(ze.getCompressedSize() == -1 ? null : ze.getCompressedSize());
+        f.setCrc(ze.getCrc() == -1 ? null : ze.getCrc());
+        f.setMethod(ZipIndex.methodName(ze.getMethod()));
+        f.setDirectory(ze.isDirectory());
+        return f;
+    }
+
+    /**
+     * Creates a file representing an entry read by a {@link ZipInputStream}.
+     * <p>
+     * Sizes and CRCs of entries followed by a data descriptor are unknown
+     * until their data has been read.
+     * </p>
+     */
+    private static VfsFile entry(VfsFile archive, ZipEntry ze) {
+        var f = entry(archive, ze.getName());
+        f.setLastModified(ze.getTime());
+        f.setLength(ze.getSize() == -1 ? null : ze.getSize());
+        f.setCompressedSize(ze.getCompressedSize() == -1 ? null : ze.getCompressedSize());
+        f.setCrc(ze.getCrc() == -1 ? null : ze.getCrc());
+        f.setMethod(ZipIndex.methodName(ze.getMethod()));
+        f.setDirectory(ze.isDirectory());
+        return f;
+    }
+
+    /**
+     * Creates a file representing an entry of a TAR archive.
+     */
+    private static VfsFile entry(VfsFile archive, TarArchiveEntry te) {
+        var f = entry(archive, te.getName());
+        f.setLastModified(te.getModTime().getTime());
+        f.setLength(te.getSize());
+        return f;
+    }
+
+    /**
+     * Creates a file representing an entry of a RAR archive.
+     */
+    private static VfsFile entry(VfsFile archive, FileHeader fh) {
+        var f = entry(archive, fh.getFileName());
+        f.setLastModified(fh.getMTime().getTime());
+        f.setLength(fh.getFullUnpackSize());
+        f.setCompressedSize(fh.getFullPackSize());
+        f.setCrc(fh.getFileCRC() & 0xffffffffL);
+        f.setMethod(fh.getUnpMethod() == RAR_STORED ? "STORED" : "RAR");
+        f.setDirectory(fh.isDirectory());
+        return f;
+    }
+
+    /**
+     * Scans the entries of a ZIP archive listed by its central directory in parallel.
      *
-     * @param file the file being scanned
-     * @param in   the input stream to read from
-     * @throws IOException if an I/O error occurs
+     * @param handle the scan the archive belongs to
+     * @param file   the archive being scanned
+     * @param index  the archive's central directory
+     * @param opener returns an opener of an entry's data
+     * @param release run once the archive and all of its entry tasks have
+     *                been scanned, or {@code null}
      */
-    public void scan(VfsFile file, InputStream in) throws IOException {
-        if (interruptException != null) {
-            throw interruptException;
-        }
+    private void scanZipIndex(ScanHandle handle, VfsFile file, ZipIndex index, Function<ZipIndex.Entry, Callable<InputStream>> opener, Runnable release) {
+        // held by this task and every entry task
+        var references = new AtomicInteger(1);
+        Runnable unreference = () -> {
+            if (references.decrementAndGet() == 0 && release != null) {
+                release.run();
+            }
+        };
 
-        var p = file.getLastPath().toLowerCase();
+        try {
+            for (var ze : index.getEntries()) {
+                handle.checkInterrupted();
 
-        if (p.endsWith(".gz") || p.endsWith(".zst")) {
-            LOG.warning("Scanning through GZip or ZStd files not yet implemented");
-        }
+                var f = entry(file, ze);
 
-        if (p.endsWith(".zip")) {
-            if (file.isNative()) {
-                // Note: ZipFile is intentionally not closed here as it's used by async executor tasks
-                @SuppressWarnings("resource")
-                final var zf = new ZipFile((File) file.file);
-                for (Enumeration<? extends ZipEntry> e = zf.entries(); interruptException == null && e.hasMoreElements();) {
-                    ZipEntry ze = e.nextElement();
-
-                    executor.submit(() -> {
-                        try {
-                            var f = new VfsFile(file.file, ze.getName());
-                            f.setLastModified(ze.getTime());
-                            f.setOpener(
-                                    () -> zf.getInputStream(ze)
-                            );
-                            scan(f, new AutoStream(
-                                    () -> zf.getInputStream(ze)
-                            ), true);
-                        } catch (VfsInterruptException ex) {
-                            interruptException = ex;
-
-                            throw ex;
-                        } catch (IOException | RuntimeException ex) {
-                            LOG.log(Level.SEVERE, null, ex);
-                        }
-                    });
+                if (!handle.accepts(f, isArchive(f))) {
+                    continue;
                 }
-                
-                if (interruptException != null)
-                    throw interruptException;
-            } else {
-                try ( var zis = new ZipInputStream(in)) {
-                    ZipEntry e;
-                    while ((e = zis.getNextEntry()) != null) {
-                        var deepPath = new String[file.archived.length + 1];
-                        arraycopy(file.archived, 0, deepPath, 0, file.archived.length);
-                        deepPath[file.archived.length] = e.getName();
-                        var df = new VfsFile(file.file, deepPath);
-                        df.setLastModified(e.getTime());
-                        df.setOpener(() -> {
-                            df.setOpener(null);
-                            return new InputStream() {
-
-                                private InputStream wrapped = zis;
-
-                                @Override
-                                public int read() throws IOException {
-                                    return wrapped.read();
-                                }
-
-                                @Override
-                                public int read(byte[] b, int off, int len) throws IOException {
-                                    return wrapped.read(b, off, len);
-                                }
-
-                                @Override
-                                public int read(byte[] b) throws IOException {
-                                    return wrapped.read(b);
-                                }
-
-                                @Override
-                                public int available() throws IOException {
-                                    return wrapped.available();
-                                }
-
-                                @Override
-                                public void close() throws IOException {
-                                    wrapped = null;
-                                }
-
-                            };
-                        });
-
-                        scan(df, zis);
-
-                        df.setOpener(null);
+
+                references.incrementAndGet();
+                forkEntry(handle, file, () -> {
+                    try {
+                        var entryOpener = opener.apply(ze);
+
+                        if (!file.isNative()) {
+                            f.setOpener(entryOpener);
+                        }
+
+                        try ( var in = new AutoStream(entryOpener)) {
+                            scanAccepted(handle, f, in);
+                        } finally {
+                            f.resetOpener();
+                        }
+                    } finally {
+                        unreference.run();
                     }
-                } catch (VfsInterruptException ex) {
-                    interruptException = ex;
-                    throw ex;
-                } catch (IOException | RuntimeException ex) {
-                    LOG.log(Level.SEVERE, "Error scanning " + file, ex);
-                }
+                });
             }
-            return;
+
+            handle.checkInterrupted();
+        } finally {
+            unreference.run();
         }
+    }
 
-        if (p.endsWith(".rar")) {
-            File tempFile = null;
-            if (!file.isNative()) {
-                tempFile = createTempFile("dfs", ".rar");
+    /**
+     * Scans a local RAR archive.
+     * <p>
+     * Entries of regular archives are scanned in parallel in the order of
+     * their position in the archive, every worker extracting through its own
+     * pooled {@link com.github.junrar.Archive}. Solid archives can only be
+     * decompressed sequentially, so they are scanned by a single task.
+     * </p>
+     *
+     * @param handle  the scan the archive belongs to
+     * @param file    the archive being scanned
+     * @param archive the local archive file
+     * @throws IOException if the archive can't be read
+     */
+    private void scanRar(ScanHandle handle, VfsFile file, File archive) throws IOException {
+        List<FileHeader> headers;
+
+        try ( var lease = RarEntries.lease(archive)) {
+            if (lease.get().archive.getMainHeader().isSolid()) {
+                scanRarSequentially(handle, file, lease.get());
+                return;
+            }
+
+            headers = new ArrayList<>(lease.get().headers);
+        }
+
+        headers.sort(comparingLong(FileHeader::getPositionInFile));
+
+        for (var fh : headers) {
+            handle.checkInterrupted();
+
+            var df = entry(file, fh);
+
+            if (!handle.accepts(df, isArchive(df))) {
+                continue;
             }
 
-            if (tempFile != null) {
-                try ( var o = new FileOutputStream(tempFile)) {
-                    copy(file.open(), o);
+            forkEntry(handle, df, () -> {
+                try ( var in = new AutoStream(df::open)) {
+                    scanAccepted(handle, df, in);
                 }
+            });
+        }
+    }
+
+    /**
+     * Scans the entries of a RAR archive one by one, in archive order.
+     * <p>
+     * Every entry is extracted completely, even if it isn't read by the
+     * consumer, as the decompressor state of solid archives carries over
+     * from one entry to the next. Entries of regular archives are checked
+     * against the filter first and rejected ones aren't extracted at all.
+     * Each extraction is waited for before the next one is started, so the
+     * archive is never used by two extractor threads at once, nor after
+     * this method returns.
+     * </p>
+     *
+     * @param handle the scan the archive belongs to
+     * @param file   the archive being scanned
+     * @param rar    the open archive, used exclusively by this method
+     * @throws IOException if an I/O error occurs
+     */
+    private void scanRarSequentially(ScanHandle handle, VfsFile file, RarEntries.Handle rar) throws IOException {
+        var solid = rar.archive.getMainHeader().isSolid();
+
+        for (var fh : rar.headers) {
+            handle.checkInterrupted();
+
+            var df = entry(file, fh);
+
+            if (!solid && !handle.accepts(df, isArchive(df))) {
+                continue;
             }
 
-            try ( var a = new Archive(tempFile == null ? (File) file.file : tempFile)) {
-                var deepPath = new String[file.archived.length + 1];
-                arraycopy(file.archived, 0, deepPath, 0, file.archived.length);
-                
-                for(FileHeader fh : a.getFileHeaders()) {
-                    if (interruptException != null) {
-                        throw interruptException;
-                    }
+            var extracted = new CountDownLatch(1);
 
-                    deepPath[file.archived.length] = fh.getFileName();
-                    var df = new VfsFile(file.file, deepPath);
-                    df.setLastModified(fh.getMTime().getTime());
-
-                    df.setOpener(
-                            () -> a.getInputStream(fh)
-                    );
-
-                    Runnable scanTask = () -> {
-                        try {
-                            scan(df);
-                        } catch (VfsInterruptException ex) {
-                            interruptException = ex;
-                            throw ex;
-                        } catch (IOException | RuntimeException ex) {
-                            LOG.log(Level.SEVERE, "Error scanning " + file, ex);
-                        } finally {
-                            df.setOpener(null);
-                        }
-                    };
-                    
-                    if (tempFile == null) {
-                        executor.submit(scanTask);
+            try {
+                try ( var data = RarEntries.extract(rar.archive, fh, extracted::countDown)) {
+                    scanStreamEntry(handle, df, data, !solid);
+                    consume(data);
+                } finally {
+                    // closing the pipe early makes the extractor fail at its next write
+                    awaitUninterruptibly(extracted);
+                }
+            } catch (VfsInterruptException ex) {
+                handle.interrupt(ex);
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                handle.error(df, ex);
+            }
+        }
+    }
+
+    /**
+     * Runs a task in the decompression executor and waits for it to finish.
+     * <p>
+     * Decompressing streamed archives is CPU-bound and RAR extraction blocks
+     * in synchronized pipes, either of which would hold on to the carrier
+     * thread of a virtual thread. The task still reads the caller's stream,
+     * so it's waited for even if the caller is interrupted. Tasks the
+     * executor rejects or drops when it's shut down run in the calling
+     * thread.
+     * </p>
+     *
+     * @param task the task to run
+     * @throws IOException if the task fails
+     */
+    private void runDecompressing(ScanTask task) throws IOException {
+        var claimed = new AtomicBoolean();
+        var done = new CountDownLatch(1);
+        var failure = new AtomicReference<Throwable>();
+
+        try {
+            decompressionExecutor.execute(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                } finally {
+                    done.countDown();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            task.run();
+            return;
+        }
+
+        var interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    if (done.await(100, MILLISECONDS)) {
+                        break;
                     }
-                    else {
-                        scanTask.run();
+
+                    // shutdownNow() drops queued tasks
+                    if (decompressionExecutor.isShutdown() && claimed.compareAndSet(false, true)) {
+                        task.run();
+                        return;
                     }
+                } catch (InterruptedException ex) {
+                    interrupted = true;
                 }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            } catch (RarException | IOException | RuntimeException ex) {
-                LOG.log(Level.SEVERE, "Error scanning " + file, ex);
-            } finally {
-                if (tempFile != null) {
-                    tempFile.delete();
-                }
+        var ex = failure.get();
+
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        var interrupted = false;
+
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
             }
+        }
 
-            return;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
+    }
+
+    /**
+     * Returns the name of the innermost file without any directory components.
+     *
+     * @param file the file
+     * @return the file name
+     */
+    private static String baseName(VfsFile file) {
+        var name = file.getLastPath();
+        var i = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        return i == -1 ? name : name.substring(i + 1);
+    }
+
+    /**
+     * Scans an entry of a sequentially read archive.
+     *
+     * @param handle  the scan the entry belongs to
+     * @param entry   the entry being scanned
+     * @param archive the archive stream positioned at the entry's data
+     * @throws IOException if an I/O error occurs
+     */
+    private void scanStreamEntry(ScanHandle handle, VfsFile entry, InputStream archive) throws IOException {
+        scanStreamEntry(handle, entry, archive, false);
+    }
+
+    /**
+     * Scans an entry of a sequentially read archive.
+     * <p>
+     * While the entry is being scanned, opening it returns the archive stream
+     * positioned at the entry's data. Afterwards the file falls back to its
+     * default opener.
+     * </p>
+     *
+     * @param handle   the scan the entry belongs to
+     * @param entry    the entry being scanned
+     * @param archive  the archive stream positioned at the entry's data
+     * @param accepted whether the entry has already been checked against the filter
+     * @throws IOException if an I/O error occurs
+     */
+    private void scanStreamEntry(ScanHandle handle, VfsFile entry, InputStream archive, boolean accepted) throws IOException {
+        entry.setOpener(() -> {
+            entry.resetOpener();
+            return CloseShieldInputStream.wrap(archive);
+        });
 
-        consumer.accept(file);
+        try {
+            if (accepted) {
+                scanAccepted(handle, entry, archive);
+            } else {
+                scan(handle, entry, archive);
+            }
+        } finally {
+            entry.resetOpener();
+        }
     }
 
     /**
@@ -280,8 +1471,21 @@ public class VfsScanner implements AutoCloseable {
      * @throws IOException if an I/O error occurs
      */
     public void scan(VfsFile file, InputStream in, boolean closeStream) throws IOException {
+        scan(new ScanHandle(this, consumer, false), file, in, closeStream);
+    }
+
+    /**
+     * Scans a VfsFile as a part of the specified scan, optionally closing the stream when done.
+     *
+     * @param handle      the scan the file belongs to
+     * @param file        the file being scanned
+     * @param in          the input stream to read from
+     * @param closeStream whether to close the stream after scanning
+     * @throws IOException if an I/O error occurs
+     */
+    protected void scan(ScanHandle handle, VfsFile file, InputStream in, boolean closeStream) throws IOException {
         try {
-            scan(file, in);
+            scan(handle, file, in);
         } finally {
             if (closeStream) {
                 in.close();
@@ -299,31 +1503,110 @@ public class VfsScanner implements AutoCloseable {
      * @throws IOException if an I/O error occurs
      */
     public void scan(File file) throws IOException {
-        if (interruptException != null) {
-            throw interruptException;
+        scan(new ScanHandle(this, consumer, false), file);
+    }
+
+    /**
+     * Scans a local filesystem file or directory as a part of the specified scan.
+     *
+     * @param handle the scan the file belongs to
+     * @param file   the file or directory to scan
+     * @throws IOException if an I/O error occurs
+     */
+    protected void scan(ScanHandle handle, File file) throws IOException {
+        handle.checkInterrupted();
+
+        var path = file.toPath();
+        var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        var f = local(path, attrs);
+
+        if (handle.accepts(f, attrs.isDirectory() || isArchive(f))) {
+            scan(handle, path, f, attrs, Set.of());
         }
+    }
 
-        if (file.isDirectory()) {
-            for(File t : file.listFiles()) {
-                if (interruptException != null) {
-                    throw interruptException;
-                }
+    /**
+     * Creates a file representing a local file with known attributes, so
+     * that they needn't be read again.
+     *
+     * @param path  the file
+     * @param attrs the attributes of the file
+     * @return the file
+     */
+    private static VfsFile local(Path path, BasicFileAttributes attrs) {
+        var f = new VfsFile(path.toFile());
+        f.setLastModified(attrs.lastModifiedTime().toMillis());
 
-                executor.submit(() -> {
-                    try {
-                        scan(t);
-                    } catch (VfsInterruptException ex) {
-                        interruptException = ex;
-                        throw ex;
-                    } catch (IOException | RuntimeException ex) {
-                        LOG.log(Level.SEVERE, null, ex);
-                    }
-                });
+        if (!attrs.isDirectory()) {
+            f.setLength(attrs.size());
+        }
+
+        return f;
+    }
+
+    /**
+     * Scans an accepted local filesystem file or directory whose attributes are already known.
+     * <p>
+     * Directory children are streamed and forked one by one, so huge
+     * directories are never listed into memory at once. Symbolic links are
+     * followed, except for links to a directory that is already being
+     * traversed, which would never end.
+     * </p>
+     *
+     * @param handle    the scan the file belongs to
+     * @param path      the file or directory to scan
+     * @param file      the file or directory as a VfsFile
+     * @param attrs     the attributes of the file, with symbolic links followed
+     * @param ancestors the file keys of the directories containing the file
+     * @throws IOException if an I/O error occurs
+     */
+    private void scan(ScanHandle handle, Path path, VfsFile file, BasicFileAttributes attrs, Set<Object> ancestors) throws IOException {
+        handle.checkInterrupted();
+
+        if (!attrs.isDirectory()) {
+            try ( var in = new AutoStream(file::open)) {
+                scanAccepted(handle, file, in);
             }
             return;
         }
 
-        scan(new VfsFile(file));
+        var key = attrs.fileKey();
+
+        if (key != null) {
+            if (ancestors.contains(key)) {
+                LOG.log(FINE, "Skipping directory cycle at {0}", path);
+                return;
+            }
+
+            var chain = new HashSet<>(ancestors);
+            chain.add(key);
+            ancestors = chain;
+        }
+
+        var parents = ancestors;
+
+        try ( var children = Files.newDirectoryStream(path)) {
+            for (var child : children) {
+                handle.checkInterrupted();
+
+                BasicFileAttributes childAttrs;
+
+                try {
+                    childAttrs = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (IOException ex) {
+                    handle.error(child, ex);
+                    continue;
+                }
+
+                var f = local(child, childAttrs);
+
+                if (handle.accepts(f, childAttrs.isDirectory() || isArchive(f))) {
+                    fork(handle, child, () -> scan(handle, child, f, childAttrs, parents));
+                }
+            }
+        } catch (DirectoryIteratorException ex) {
+            throw ex.getCause();
+        }
     }
 
     /**
@@ -335,7 +1618,8 @@ public class VfsScanner implements AutoCloseable {
      */
     public void stop() {
         interruptException = new VfsInterruptException();
-        executor.shutdownNow();
+        shutdownNow();
+        abortHandles();
     }
 
     /**
@@ -349,16 +1633,57 @@ public class VfsScanner implements AutoCloseable {
      */
     public void stopFromConsumer() {
         interruptException = new VfsInterruptException();
-        executor.shutdownNow();
+        shutdownNow();
+        abortHandles();
         throw interruptException;
     }
 
+    private void shutdownNow() {
+        executor.shutdownNow();
+
+        if (decompressionExecutor != null) {
+            decompressionExecutor.shutdownNow();
+        }
+    }
+
+    private void abortHandles() {
+        for (var handle : handles) {
+            handle.abort(interruptException);
+        }
+    }
+
     /**
-     * Closes this scanner and shuts down the executor service.
+     * Closes this scanner and shuts down the executor services.
+     * <p>
+     * Scans in progress aren't stopped. The executors stop accepting tasks,
+     * so tasks forked from then on run in the thread forking them, and this
+     * method waits until the scans have finished. Call {@link #stop()}
+     * first to abandon them instead.
+     * </p>
      */
     @Override
     public void close() {
         executor.close();
+
+        if (decompressionExecutor != null) {
+            decompressionExecutor.close();
+        }
+    }
+
+    /**
+     * A unit of scanning work.
+     */
+    @FunctionalInterface
+    protected interface ScanTask {
+
+        void run() throws IOException;
+
+    }
+
+    private interface RootTask {
+
+        void run(ScanHandle handle) throws IOException;
+
     }
 
 }
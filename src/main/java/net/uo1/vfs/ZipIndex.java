@@ -0,0 +1,486 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.apache.commons.io.channels.CloseShieldChannel;
+
+/**
+ * Parsed central directory of a ZIP archive.
+ * <p>
+ * The index is read once per archive and maps entry names to the location
+ * of their data, so an entry is opened by seeking straight to its local
+ * header instead of inflating every preceding entry. Indexes of local files
+ * are cached and revalidated against the file's size and modification time,
+ * and their entries are read through channels pooled by {@link ArchiveHandles}.
+ * Indexes of remote archives are cached under a key identifying the
+ * version of the archive, such as its URL, size and ETag.
+ * </p>
+ *
+ * @author m
+ */
+final class ZipIndex {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int MAX_CACHED_INDEXES = 64;
+
+    private static final Map<String, ZipIndex> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+            return size() > MAX_CACHED_INDEXES;
+        }
+    };
+
+    /**
+     * Location and attributes of a single archive entry.
+     */
+    static final class Entry {
+
+        final String name;
+        final long localHeaderOffset;
+        final long compressedSize;
+        final long size;
+        final long crc;
+        final long time;
+        final int method;
+        final boolean encrypted;
+
+        Entry(ZipArchiveEntry e) {
+            this.name = e.getName();
+            this.localHeaderOffset = e.getLocalHeaderOffset();
+            this.compressedSize = e.getCompressedSize();
+            this.size = e.getSize();
+            this.crc = e.getCrc();
+            this.time = e.getTime();
+            this.method = e.getMethod();
+            this.encrypted = e.getGeneralPurposeBit().usesEncryption();
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isDirectlyReadable() {
+            return !encrypted && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+        }
+
+    }
+
+    private final Map<String, Entry> entries;
+    private final long length;
+    private final long modified;
+
+    private ZipIndex(Map<String, Entry> entries, long length, long modified) {
+        this.entries = entries;
+        this.length = length;
+        this.modified = modified;
+    }
+
+    /**
+     * Reads the central directory from a seekable channel.
+     * <p>
+     * The channel is left open.
+     * </p>
+     *
+     * @param channel the channel containing the archive
+     * @return the index
+     * @throws IOException if the archive can't be read
+     */
+    static ZipIndex read(SeekableByteChannel channel) throws IOException {
+        return read(channel, -1, -1);
+    }
+
+    private static ZipIndex read(SeekableByteChannel channel, long length, long modified) throws IOException {
+        var entries = new LinkedHashMap<String, Entry>();
+
+        // the channel's position is used while parsing, so concurrent parsers of a shared channel must be serialized
+        synchronized (channel) {
+            try (var zf = ZipFile.builder().setSeekableByteChannel(CloseShieldChannel.wrap(channel)).setIgnoreLocalFileHeader(true).get()) {
+                for (var e = zf.getEntries(); e.hasMoreElements();) {
+                    var entry = new Entry(e.nextElement());
+                    entries.putIfAbsent(entry.name, entry);
+                }
+            }
+        }
+
+        return new ZipIndex(Collections.unmodifiableMap(entries), length, modified);
+    }
+
+    /**
+     * Returns the index of a local archive, reading it if it isn't cached
+     * or if the archive has changed since it was read.
+     *
+     * @param file the archive
+     * @return the index
+     * @throws IOException if the archive can't be read
+     */
+    static ZipIndex forFile(File file) throws IOException {
+        var key = file.getAbsolutePath();
+        var length = file.length();
+        var modified = file.lastModified();
+
+        synchronized (CACHE) {
+            var index = CACHE.get(key);
+
+            if (index != null && index.length == length && index.modified == modified) {
+                return index;
+            }
+        }
+
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        ZipIndex index;
+
+        try (var lease = ArchiveHandles.channel(file)) {
+            index = read(lease.get(), length, modified);
+        }
+
+        synchronized (CACHE) {
+            CACHE.put(key, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the index of an archive read through a channel, reading it
+     * unless an index with the same key is cached.
+     *
+     * @param key     identifies the archive's content, or {@code null} to bypass the cache
+     * @param channel the channel containing the archive
+     * @return the index
+     * @throws IOException if the archive can't be read
+     */
+    static ZipIndex forChannel(String key, SeekableByteChannel channel) throws IOException {
+        if (key == null) {
+            return read(channel);
+        }
+
+        synchronized (CACHE) {
+            var index = CACHE.get(key);
+
+            if (index != null) {
+                return index;
+            }
+        }
+
+        var index = read(channel);
+
+        synchronized (CACHE) {
+            CACHE.put(key, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns an entry by its name.
+     *
+     * @param name the entry name
+     * @return the entry, or {@code null} if the archive doesn't contain it
+     */
+    Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns all entries in central directory order.
+     *
+     * @return the entries
+     */
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns the name of a ZIP compression method.
+     *
+     * @param method the method code
+     * @return the method's name, such as {@code DEFLATED}, or the code if the method is unknown
+     */
+    static String methodName(int method) {
+        var m = ZipMethod.getMethodByCode(method);
+        return m != null ? m.name() : String.valueOf(method);
+    }
+
+    /**
+     * Returns the position of the entry's data within the archive.
+     *
+     * @param channel the channel containing the archive
+     * @param entry   the entry
+     * @return the position of the first byte of the entry's data
+     * @throws IOException if the local header can't be read
+     */
+    static long getDataOffset(SeekableByteChannel channel, Entry entry) throws IOException {
+        var header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH).order(LITTLE_ENDIAN);
+
+        while (header.hasRemaining()) {
+            if (ChannelRangeInputStream.read(channel, header, entry.localHeaderOffset + header.position()) == -1) {
+                throw new EOFException("Truncated local header of " + entry.name);
+            }
+        }
+
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header of " + entry.name);
+        }
+
+        return entry.localHeaderOffset + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+
+    /**
+     * Opens an entry for reading.
+     * <p>
+     * Stored and deflated entries are read directly from the channel,
+     * other compression methods are delegated to Commons Compress. Like
+     * {@link java.util.zip.ZipInputStream}, the stream checks the size and
+     * CRC-32 of the data against the central directory when its end is
+     * reached and throws {@link ZipException} on a mismatch.
+     * </p>
+     *
+     * @param channel      the channel containing the archive
+     * @param entry        the entry to open
+     * @param closeChannel whether to close the channel when the stream is closed
+     * @return a stream of the entry's uncompressed data
+     * @throws IOException if the entry can't be opened
+     */
+    static InputStream open(SeekableByteChannel channel, Entry entry, boolean closeChannel) throws IOException {
+        try {
+            if (!entry.isDirectlyReadable()) {
+                return openWithCommonsCompress(channel, entry, closeChannel);
+            }
+
+            var raw = new ChannelRangeInputStream(channel, getDataOffset(channel, entry), entry.compressedSize, closeChannel);
+
+            if (entry.method == ZipEntry.STORED) {
+                return new CheckedEntryInputStream(raw, entry);
+            }
+
+            return new CheckedEntryInputStream(new RawInflaterInputStream(raw), entry);
+        } catch (IOException | RuntimeException ex) {
+            if (closeChannel) {
+                channel.close();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens an entry of a local archive for reading.
+     *
+     * @param file the archive
+     * @param name the entry name
+     * @return a stream of the entry's uncompressed data
+     * @throws IOException if the entry doesn't exist or can't be opened
+     */
+    static InputStream open(File file, String name) throws IOException {
+        var entry = forFile(file).getEntry(name);
+
+        if (entry == null) {
+            throw new FileNotFoundException(name + " in " + file.getName());
+        }
+
+        return open(file, entry);
+    }
+
+    /**
+     * Opens an entry of a local archive for reading through a pooled channel.
+     *
+     * @param file  the archive
+     * @param entry the entry
+     * @return a stream of the entry's uncompressed data
+     * @throws IOException if the entry can't be opened
+     */
+    static InputStream open(File file, Entry entry) throws IOException {
+        if (!entry.isDirectlyReadable()) {
+            // Commons Compress relies on the channel's position, so it gets a channel of its own
+            return open(FileChannel.open(file.toPath(), READ), entry, true);
+        }
+
+        var lease = ArchiveHandles.channel(file);
+
+        try {
+            return new InputStreamWithCloseHook(open(lease.get(), entry, false), lease::close);
+        } catch (IOException | RuntimeException ex) {
+            lease.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks the size and CRC-32 of an entry's data against the central directory.
+     *
+     * @param entry the entry
+     * @param size  the size of the data
+     * @param crc   the CRC-32 of the data
+     * @throws ZipException if either doesn't match
+     */
+    static void check(Entry entry, long size, long crc) throws ZipException {
+        if (entry.size != -1 && size != entry.size) {
+            throw new ZipException("invalid entry size (expected " + entry.size + " but got " + size + " bytes) of " + entry.name);
+        }
+
+        if (entry.crc != -1 && crc != entry.crc) {
+            throw new ZipException("invalid entry CRC (expected 0x" + Long.toHexString(entry.crc) + " but got 0x" + Long.toHexString(crc) + ") of " + entry.name);
+        }
+    }
+
+    /**
+     * Checks the CRC-32 of a stored entry's data, reading it from the page
+     * cache through mappings.
+     *
+     * @param channel    the channel of the archive
+     * @param dataOffset the position of the entry's data
+     * @param entry      the entry
+     * @throws IOException if the data can't be read or doesn't match
+     */
+    static void checkStored(FileChannel channel, long dataOffset, Entry entry) throws IOException {
+        var crc = new CRC32();
+
+        for (var position = 0L; position < entry.size; position += Integer.MAX_VALUE) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + position, Math.min(Integer.MAX_VALUE, entry.size - position)));
+        }
+
+        check(entry, entry.size, crc.getValue());
+    }
+
+    private static InputStream openWithCommonsCompress(SeekableByteChannel channel, Entry entry, boolean closeChannel) throws IOException {
+        var zf = ZipFile.builder().setSeekableByteChannel(closeChannel ? channel : CloseShieldChannel.wrap(channel)).get();
+
+        try {
+            var ze = zf.getEntry(entry.name);
+
+            if (ze == null) {
+                throw new FileNotFoundException(entry.name);
+            }
+
+            return new InputStreamWithCloseHook(zf.getInputStream(ze), () -> ZipFile.closeQuietly(zf));
+        } catch (IOException | RuntimeException ex) {
+            zf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks the size and CRC-32 of an entry's data once its end is reached.
+     * Skipped data is read, as it's part of the checksum.
+     */
+    private static class CheckedEntryInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+        CheckedEntryInputStream(InputStream in, Entry entry) {
+            this.in = in;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = in.read();
+
+            if (b == -1) {
+                check(entry, count, crc.getValue());
+            } else {
+                crc.update(b);
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var nr = in.read(b, off, len);
+
+            if (nr == -1) {
+                check(entry, count, crc.getValue());
+            } else {
+                crc.update(b, off, nr);
+                count += nr;
+            }
+
+            return nr;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    /**
+     * Inflates raw deflate data, ending the inflater when closed.
+     */
+    private static class RawInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof = false;
+        private boolean closed = false;
+
+        RawInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of deflated data");
+            }
+
+            len = in.read(buf, 0, buf.length);
+
+            if (len == -1) {
+                // the inflater may need a dummy byte to detect the end of raw deflate data
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+
+    }
+
+}
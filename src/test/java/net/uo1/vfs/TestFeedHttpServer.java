@@ -12,10 +12,12 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import static java.lang.Integer.MAX_VALUE;
 import java.net.InetSocketAddress;
+import java.util.Random;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import java.util.concurrent.ExecutorService;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Logger.getLogger;
 import java.util.zip.GZIPOutputStream;
@@ -33,10 +35,23 @@ class TestFeedHttpServer implements AutoCloseable {
     public static final String GZIP_CSV_URI = "/test.csv.gz";
     public static final String ZIP_CSV_URI = "/test.zip";
     public static final String TGZ_CSV_URI = "/test.tgz";
+    public static final String RANGED_ZIP_URI = "/ranged.zip";
+    public static final String FLAKY_URI = "/flaky.zip";
+    public static final String STALLED_URI = "/stalled.zip";
+    public static final String CACHED_TGZ_URI = "/cached.tgz";
+    public static final String SLOW_ZIP_URI = "/slow.zip";
+    public static final String RANGED_ZIP_ETAG = "\"ranged-1\"";
 
     private final HttpServer server;
     private final int port;
     private final ExecutorService executorService;
+    private final byte[] rangedZip;
+    private final byte[] cachedTgz;
+    final AtomicLong rangedRequests = new AtomicLong();
+    final AtomicLong rangedBytesSent = new AtomicLong();
+    final AtomicLong flakyFailures = new AtomicLong();
+    final AtomicLong stalls = new AtomicLong();
+    final AtomicLong cachedTgzBytesSent = new AtomicLong();
 
     public TestFeedHttpServer(int port) throws IOException {
         this.port = port;
@@ -44,6 +59,11 @@ class TestFeedHttpServer implements AutoCloseable {
         server.createContext(GZIP_CSV_URI, this::gzipCsv);
         server.createContext(ZIP_CSV_URI, this::zipCsv);
         server.createContext(TGZ_CSV_URI, this::tarGzipCsv);
+        server.createContext(RANGED_ZIP_URI, this::rangedZip);
+        server.createContext(FLAKY_URI, this::flakyZip);
+        server.createContext(STALLED_URI, this::stalledZip);
+        server.createContext(CACHED_TGZ_URI, this::cachedTgz);
+        server.createContext(SLOW_ZIP_URI, hx -> serveRangedZip(hx, true));
         server.createContext("/", hx -> {
             hx.getResponseHeaders().add("Content-Type", "text/plain");
             hx.sendResponseHeaders(404, 0);
@@ -51,6 +71,8 @@ class TestFeedHttpServer implements AutoCloseable {
                 os.write("Not Found".getBytes(ISO_8859_1));
             }
         });
+        rangedZip = buildRangedZip();
+        cachedTgz = buildCachedTgz();
         executorService = newFixedThreadPool(4);
         server.setExecutor(executorService);
         server.start();
@@ -126,6 +148,191 @@ class TestFeedHttpServer implements AutoCloseable {
         }
     }
 
+    public byte[] getRangedZip() {
+        return rangedZip;
+    }
+
+    public byte[] getCachedTgz() {
+        return cachedTgz;
+    }
+
+    /**
+     * Serves a ZIP of 200 incompressible 8 KiB entries, honouring single
+     * byte ranges, If-Range and If-None-Match.
+     */
+    private void rangedZip(HttpExchange hx) throws IOException {
+        rangedRequests.incrementAndGet();
+        serveRangedZip(hx, false);
+    }
+
+    /**
+     * Serves the ranged ZIP, optionally sending 4 KiB every 100 ms.
+     */
+    private void serveRangedZip(HttpExchange hx, boolean slow) throws IOException {
+        var range = hx.getRequestHeaders().getFirst("Range");
+        var ifRange = hx.getRequestHeaders().getFirst("If-Range");
+        long start = 0, end = rangedZip.length - 1;
+
+        hx.getResponseHeaders().add("ETag", RANGED_ZIP_ETAG);
+        hx.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+        if (RANGED_ZIP_ETAG.equals(hx.getRequestHeaders().getFirst("If-None-Match"))) {
+            hx.sendResponseHeaders(304, -1);
+            hx.close();
+            return;
+        }
+
+        if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(RANGED_ZIP_ETAG))) {
+            var spec = range.substring(6).split("-", -1);
+
+            if (spec[0].isEmpty()) {
+                start = Math.max(0, rangedZip.length - Long.parseLong(spec[1]));
+            } else {
+                start = Long.parseLong(spec[0]);
+
+                if (!spec[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(spec[1]));
+                }
+            }
+
+            hx.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + rangedZip.length);
+            hx.sendResponseHeaders(206, end - start + 1);
+        } else {
+            hx.sendResponseHeaders(200, rangedZip.length);
+        }
+
+        try ( var os = hx.getResponseBody()) {
+            if (!slow) {
+                os.write(rangedZip, (int) start, (int) (end - start + 1));
+                rangedBytesSent.addAndGet(end - start + 1);
+                return;
+            }
+
+            for (var position = start; position <= end; position += 4096) {
+                os.write(rangedZip, (int) position, (int) Math.min(4096, end - position + 1));
+                os.flush();
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves the ranged ZIP, but drops the connection halfway through the
+     * first request of every download, while the range requests resuming
+     * it are served completely.
+     */
+    private void flakyZip(HttpExchange hx) throws IOException {
+        if (hx.getRequestHeaders().getFirst("Range") != null) {
+            rangedZip(hx);
+            return;
+        }
+
+        flakyFailures.incrementAndGet();
+
+        hx.getResponseHeaders().add("ETag", RANGED_ZIP_ETAG);
+        hx.getResponseHeaders().add("Accept-Ranges", "bytes");
+        hx.sendResponseHeaders(200, rangedZip.length);
+
+        try {
+            var os = hx.getResponseBody();
+            os.write(rangedZip, 0, rangedZip.length / 2);
+            os.flush();
+        } finally {
+            // closing the exchange before the whole body was written drops the connection
+            hx.close();
+        }
+    }
+
+    /**
+     * Serves the ranged ZIP, but stops sending for a few seconds halfway
+     * through the first request of every download, while the range requests
+     * resuming it are served completely.
+     */
+    private void stalledZip(HttpExchange hx) throws IOException {
+        if (hx.getRequestHeaders().getFirst("Range") != null) {
+            rangedZip(hx);
+            return;
+        }
+
+        stalls.incrementAndGet();
+
+        hx.getResponseHeaders().add("ETag", RANGED_ZIP_ETAG);
+        hx.getResponseHeaders().add("Accept-Ranges", "bytes");
+        hx.sendResponseHeaders(200, rangedZip.length);
+
+        try {
+            var os = hx.getResponseBody();
+            os.write(rangedZip, 0, rangedZip.length / 2);
+            os.flush();
+            Thread.sleep(3000);
+            os.write(rangedZip, rangedZip.length / 2, rangedZip.length - rangedZip.length / 2);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            hx.close();
+        }
+    }
+
+    /**
+     * Serves a TAR.GZ of known length with an ETag, honouring If-None-Match.
+     */
+    private void cachedTgz(HttpExchange hx) throws IOException {
+        hx.getResponseHeaders().add("ETag", "\"tgz-1\"");
+
+        if ("\"tgz-1\"".equals(hx.getRequestHeaders().getFirst("If-None-Match"))) {
+            hx.sendResponseHeaders(304, -1);
+            hx.close();
+            return;
+        }
+
+        hx.getResponseHeaders().add("Content-Type", "application/gzip");
+        hx.sendResponseHeaders(200, cachedTgz.length);
+
+        try ( var os = hx.getResponseBody()) {
+            os.write(cachedTgz);
+            cachedTgzBytesSent.addAndGet(cachedTgz.length);
+        }
+    }
+
+    private static byte[] buildCachedTgz() throws IOException {
+        var o = new ByteArrayOutputStream();
+
+        try ( var tos = new TarArchiveOutputStream(new GZIPOutputStream(o))) {
+            for (var i = 0; i < 3; i++) {
+                var data = ("tar" + i).getBytes(ISO_8859_1);
+                var entry = new TarArchiveEntry("dir/tar" + i + ".txt");
+                entry.setSize(data.length);
+
+                tos.putArchiveEntry(entry);
+                tos.write(data);
+                tos.closeArchiveEntry();
+            }
+        }
+
+        return o.toByteArray();
+    }
+
+    private static byte[] buildRangedZip() throws IOException {
+        var random = new Random(1);
+        var o = new ByteArrayOutputStream();
+
+        try ( var zos = new ZipOutputStream(o)) {
+            for (var i = 0; i < 200; i++) {
+                var data = new byte[8192];
+                random.nextBytes(data);
+                data[0] = (byte) i;
+
+                zos.putNextEntry(new ZipEntry("dir/entry" + i + ".bin"));
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+
+        return o.toByteArray();
+    }
+
     public byte[] buildFile() throws IOException {
         var o = new ByteArrayOutputStream();
 
@@ -3,18 +3,46 @@
  */
 package net.uo1.vfs;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import static java.util.Base64.getEncoder;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Logger.getLogger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 import static net.uo1.vfs.VfsFile.parsePath;
 import static net.uo1.vfs.VfsFile.resolvePath;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -65,6 +93,681 @@ public class VfsFileTest {
         assertArrayEquals("test".getBytes(US_ASCII), vFile.getContent());
     }
 
+    @Test
+    public void testReadNativeZipEntries() throws IOException {
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+
+        var stored = "stored".getBytes(US_ASCII);
+        var crc = new CRC32();
+        crc.update(stored);
+
+        try ( var zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (var i = 0; i < 100; i++) {
+                zos.putNextEntry(new ZipEntry("dir/entry" + i + ".txt"));
+                zos.write(("entry" + i).getBytes(US_ASCII));
+                zos.closeEntry();
+            }
+
+            var entry = new ZipEntry("stored.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(stored);
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("inner.zip"));
+            zos.write(zip("inner", "inner.txt"));
+            zos.closeEntry();
+        }
+
+        for (var i = 99; i >= 0; i -= 7) {
+            assertEquals("entry" + i, new VfsFile(zip, "dir/entry" + i + ".txt").getContentAsUTF8String());
+        }
+
+        assertEquals("stored", new VfsFile(zip, "stored.txt").getContentAsUTF8String());
+        assertEquals("inner", resolvePath(zip.getPath() + "!inner.zip!inner.txt").getContentAsUTF8String());
+
+        try {
+            new VfsFile(zip, "missing.txt").open();
+            fail();
+        } catch (FileNotFoundException ex) {
+        }
+    }
+
+    @Test
+    public void testEntryMetadataAndPresizedContent() throws IOException {
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+
+        var data = "metadata".getBytes(US_ASCII);
+        var crc = new CRC32();
+        crc.update(data);
+
+        try ( var zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new ZipEntry("entry.txt"));
+            zos.write(data);
+            zos.closeEntry();
+        }
+
+        var entry = new VfsFile(zip, "entry.txt");
+
+        assertEquals(Long.valueOf(data.length), entry.length());
+        assertEquals(Long.valueOf(crc.getValue()), entry.getCrc());
+        assertEquals("DEFLATED", entry.getMethod());
+        assertNotNull(entry.getCompressedSize());
+
+        // a wrong size hint must not change the content
+        entry.setLength(3L);
+        assertEquals("metadata", entry.getContentAsUTF8String());
+        entry.setLength(100L);
+        assertEquals("metadata", entry.getContentAsUTF8String());
+
+        // a forged size must not be allocated up front
+        entry.setLength((long) Integer.MAX_VALUE - 8);
+        assertEquals("metadata", entry.getContentAsUTF8String());
+
+        // content larger than the presized limit grows towards its size
+        var large = new byte[(3 << 20) + 5];
+        new Random(3).nextBytes(large);
+
+        var f = new VfsFile(new File("large"), "entry");
+        f.setOpener(() -> new ByteArrayInputStream(large));
+
+        for (var length : new long[]{large.length, large.length - 1000, large.length + 1000}) {
+            f.setLength(length);
+            assertArrayEquals(large, f.getContent());
+        }
+    }
+
+    @Test
+    public void testContentOfUnknownSizeAndPooledBuffers() throws IOException {
+        var small = "small".getBytes(US_ASCII);
+        var large = new byte[Vfs.getBufferSize() * 3 + 17];
+        new Random(1).nextBytes(large);
+
+        var f = new VfsFile(new File("unknown"), "entry");
+
+        f.setOpener(() -> new ByteArrayInputStream(small));
+        assertArrayEquals(small, f.getContent());
+
+        f.setOpener(() -> new ByteArrayInputStream(large));
+        assertArrayEquals(large, f.getContent());
+
+        var buffers = new ArrayList<byte[]>();
+        var total = new AtomicLong();
+
+        for (var i = 0; i < 2; i++) {
+            f.process((data, ofs, len) -> {
+                if (!buffers.contains(data)) {
+                    buffers.add(data);
+                }
+                total.addAndGet(len);
+            });
+        }
+
+        assertEquals(large.length * 2, total.get());
+        assertEquals(1, buffers.size());
+    }
+
+    @Test
+    public void testProcessByteBuffers() throws IOException {
+        var data = new byte[Vfs.getBufferSize() * 2 + 123];
+        new Random(2).nextBytes(data);
+
+        var expected = new CRC32();
+        expected.update(data);
+
+        var file = File.createTempFile("vfs", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+
+        var entry = new VfsFile(new File("unknown"), "entry");
+        entry.setOpener(() -> new ByteArrayInputStream(data));
+
+        for (var f : List.of(new VfsFile(file), entry)) {
+            var crc = new CRC32();
+
+            f.process((ByteBuffer buf) -> {
+                assertTrue(buf.isDirect());
+                crc.update(buf);
+            });
+
+            assertEquals(expected.getValue(), crc.getValue());
+        }
+    }
+
+    @Test
+    public void testMapAndChannelOfStoredEntries() throws IOException {
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+
+        var stored = "0123456789".getBytes(US_ASCII);
+        var crc = new CRC32();
+        crc.update(stored);
+
+        try ( var zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new ZipEntry("deflated.txt"));
+            zos.write(stored);
+            zos.closeEntry();
+
+            var entry = new ZipEntry("stored.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(stored);
+            zos.closeEntry();
+        }
+
+        var entry = new VfsFile(zip, "stored.txt");
+        var map = entry.map(3, 4);
+
+        assertEquals(4, map.remaining());
+        assertEquals('3', map.get(0));
+        assertEquals(10, entry.map().remaining());
+
+        try ( var ch = entry.openChannel()) {
+            var buf = ByteBuffer.allocate(100);
+
+            assertEquals(10, ch.size());
+            ch.position(5);
+            assertEquals(5, ch.read(buf));
+            assertEquals(-1, ch.read(buf));
+            assertEquals("56789", new String(buf.array(), 0, 5, US_ASCII));
+        }
+
+        var bos = new ByteArrayOutputStream();
+        assertEquals(10, entry.transferTo(Channels.newChannel(bos)));
+        assertEquals(10, new VfsFile(zip, "deflated.txt").transferTo(Channels.newChannel(bos)));
+        assertEquals("01234567890123456789", bos.toString(US_ASCII));
+
+        assertNull(new VfsFile(zip, "deflated.txt").map());
+        assertNull(new VfsFile(zip, "deflated.txt").openChannel());
+        assertEquals(zip.length(), new VfsFile(zip).map().remaining());
+
+        try {
+            entry.map(5, 6);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testCorruptZipEntriesAreDetected() throws IOException {
+        var data = "0123456789".getBytes(US_ASCII);
+        var crc = new CRC32();
+        crc.update(data);
+
+        var bos = new ByteArrayOutputStream();
+
+        try ( var zos = new ZipOutputStream(bos)) {
+            zos.putNextEntry(new ZipEntry("deflated.txt"));
+            zos.write(data);
+            zos.closeEntry();
+
+            var entry = new ZipEntry("stored.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(data);
+            zos.closeEntry();
+        }
+
+        var bytes = bos.toByteArray();
+        var text = new String(bytes, ISO_8859_1);
+
+        // corrupts the stored data and the deflated entry's CRC in the central directory
+        bytes[text.indexOf("0123456789")] = 'X';
+        bytes[text.indexOf("PK\u0001\u0002") + 16] ^= 1;
+
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+        Files.write(zip.toPath(), bytes);
+
+        for (var name : List.of("deflated.txt", "stored.txt")) {
+            try {
+                new VfsFile(zip, name).getContent();
+                fail(name);
+            } catch (ZipException ex) {
+                // expected
+            }
+        }
+
+        var stored = new VfsFile(zip, "stored.txt");
+
+        try {
+            stored.transferTo(Channels.newChannel(new ByteArrayOutputStream()));
+            fail();
+        } catch (ZipException ex) {
+            // expected
+        }
+
+        try {
+            stored.map();
+            fail();
+        } catch (ZipException ex) {
+            // expected
+        }
+
+        try {
+            stored.process((ByteBuffer buf) -> {
+            });
+            fail();
+        } catch (ZipException ex) {
+            // expected
+        }
+
+        assertEquals(4, stored.map(3, 4).remaining());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        var data = "digest me".getBytes(US_ASCII);
+        var entry = new VfsFile(new File("unknown"), "entry");
+        entry.setOpener(() -> new ByteArrayInputStream(data));
+
+        var crc = new CRC32();
+        crc.update(data);
+
+        var digests = entry.digest("SHA-256", "CRC32");
+
+        assertEquals(List.of("SHA-256", "CRC32"), new ArrayList<>(digests.keySet()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digests.get("SHA-256"));
+        assertEquals(crc.getValue(), ByteBuffer.wrap(digests.get("CRC32")).getInt() & 0xffffffffL);
+
+        // large local files are hashed by one thread per algorithm
+        var sparse = File.createTempFile("vfs", ".bin");
+        sparse.deleteOnExit();
+
+        try ( var raf = new RandomAccessFile(sparse, "rw")) {
+            raf.setLength((64L << 20) + 3);
+        }
+
+        var md5 = MessageDigest.getInstance("MD5");
+        var crc32c = new CRC32C();
+        var zeros = new byte[1 << 20];
+
+        for (var remaining = sparse.length(); remaining > 0; remaining -= zeros.length) {
+            md5.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+            crc32c.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+        }
+
+        digests = new VfsFile(sparse).digest("MD5", "CRC32C");
+
+        assertArrayEquals(md5.digest(), digests.get("MD5"));
+        assertEquals(crc32c.getValue(), ByteBuffer.wrap(digests.get("CRC32C")).getInt() & 0xffffffffL);
+
+        try {
+            entry.digest("NO-SUCH-DIGEST");
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testArchiveHandlesAreReused() throws IOException {
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+
+        try ( var o = new FileOutputStream(zip)) {
+            o.write(zip("test", "test.txt"));
+        }
+
+        FileChannel channel;
+
+        try ( var a = ArchiveHandles.channel(zip);  var b = ArchiveHandles.channel(zip)) {
+            channel = a.get();
+            assertSame(channel, b.get());
+        }
+
+        assertEquals("test", new VfsFile(zip, "test.txt").getContentAsUTF8String());
+
+        try ( var a = ArchiveHandles.channel(zip)) {
+            assertSame(channel, a.get());
+        }
+
+        Vfs.closeIdleArchives();
+
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testInterruptedReaderDoesNotBreakPooledChannel() throws IOException {
+        var zip = File.createTempFile("vfs", ".zip");
+        zip.deleteOnExit();
+
+        try ( var o = new FileOutputStream(zip)) {
+            o.write(zip("test", "test.txt"));
+        }
+
+        FileChannel channel;
+
+        try ( var a = ArchiveHandles.channel(zip); var b = ArchiveHandles.channel(zip)) {
+            channel = a.get();
+            assertSame(channel, b.get());
+
+            var size = channel.size();
+            channel.position(4);
+            Thread.currentThread().interrupt();
+
+            try {
+                b.get().read(ByteBuffer.allocate(16), 0);
+                fail();
+            } catch (ClosedByInterruptException ex) {
+                // expected
+            } finally {
+                Thread.interrupted();
+            }
+
+            // the other lease keeps reading the same channel, at the same position
+            assertTrue(channel.isOpen());
+            assertEquals(4, channel.position());
+            assertEquals(size, channel.size());
+
+            var buf = ByteBuffer.allocate(16);
+            assertEquals(16, channel.read(buf));
+            assertEquals(20, channel.position());
+        }
+
+        assertEquals("test", new VfsFile(zip, "test.txt").getContentAsUTF8String());
+
+        try ( var a = ArchiveHandles.channel(zip)) {
+            assertSame(channel, a.get());
+            assertTrue(a.get().isOpen());
+        }
+    }
+
+    @Test
+    public void testHttpClientUrlOpenerHostLimit() throws Exception {
+        var opener = new HttpClientUrlOpener();
+        opener.setMaxConnectionsPerHost(1);
+
+        var url = new URL(server.getUrl() + TestFeedHttpServer.GZIP_CSV_URI);
+        var first = opener.open(url);
+        var second = opener.openAsync(url);
+
+        Thread.sleep(200);
+        assertFalse(second.isDone());
+
+        first.close();
+
+        try (var in = new GZIPInputStream(second.get(10, SECONDS))) {
+            assertArrayEquals(server.buildFile(), in.readAllBytes());
+        }
+
+        try {
+            opener.open(new URL(server.getUrl() + "/missing"));
+            fail();
+        } catch (FileNotFoundException ex) {
+            // expected
+        }
+
+        // the failed request must have released its permit
+        opener.open(url).close();
+    }
+
+    @Test
+    public void testReadRemoteZipEntryWithRanges() throws IOException {
+        var zip = server.getRangedZip();
+        var requests = server.rangedRequests.get();
+        var sent = server.rangedBytesSent.get();
+
+        var entry = resolvePath(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI + "!dir/entry42.bin");
+        var content = entry.getContent();
+
+        assertEquals(8192, content.length);
+        assertEquals(42, content[0]);
+        assertTrue(server.rangedRequests.get() - requests <= 3);
+        assertTrue(server.rangedBytesSent.get() - sent < zip.length / 4);
+
+        var other = resolvePath(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI + "!dir/entry199.bin");
+        assertEquals((byte) 199, other.getContent()[0]);
+
+        try {
+            resolvePath(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI + "!dir/missing.bin").getContent();
+            fail();
+        } catch (FileNotFoundException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSegmentedDownload() throws IOException {
+        var zip = server.getRangedZip();
+        var opener = new HttpClientUrlOpener();
+        opener.setDownloadSegments(4);
+        opener.setSegmentSize(65536);
+
+        var requests = server.rangedRequests.get();
+
+        try (var in = opener.open(new URL(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI))) {
+            assertArrayEquals(zip, in.readAllBytes());
+        }
+
+        assertEquals((zip.length + 65535) / 65536, server.rangedRequests.get() - requests);
+
+        // resources no larger than a segment are read by the probe alone
+        opener.setSegmentSize(zip.length);
+        requests = server.rangedRequests.get();
+
+        try (var in = opener.open(new URL(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI))) {
+            assertArrayEquals(zip, in.readAllBytes());
+        }
+
+        assertEquals(1, server.rangedRequests.get() - requests);
+    }
+
+    @Test
+    public void testClosingSegmentedDownloadStopsSegments() throws Exception {
+        var opener = new HttpClientUrlOpener();
+        opener.setDownloadSegments(4);
+        opener.setSegmentSize(65536);
+        opener.setMaxConnectionsPerHost(5);
+
+        var url = new URL(server.getUrl() + TestFeedHttpServer.SLOW_ZIP_URI);
+
+        try (var in = opener.open(url)) {
+            assertTrue(in.read() != -1);
+        }
+
+        // the four segments would hold their permits for seconds if they kept downloading
+        var small = new URL(server.getUrl() + TestFeedHttpServer.CACHED_TGZ_URI);
+        var open = new ArrayList<InputStream>();
+
+        try {
+            for (var i = 0; i < 5; i++) {
+                open.add(opener.openAsync(small).get(1, SECONDS));
+            }
+        } finally {
+            for (var in : open) {
+                in.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCachingUrlOpener() throws IOException {
+        var zip = server.getRangedZip();
+        var url = new URL(server.getUrl() + TestFeedHttpServer.RANGED_ZIP_URI);
+        var dir = Files.createTempDirectory("vfs-cache").toFile();
+
+        try {
+            var cache = new CachingUrlOpener(dir, 4L << 20);
+
+            try (var in = cache.open(url)) {
+                assertArrayEquals(zip, in.readAllBytes());
+            }
+
+            assertEquals(zip.length, cache.getSize());
+
+            // revalidated with a 304 and served from the disk
+            var sent = server.rangedBytesSent.get();
+            cache = new CachingUrlOpener(dir, 4L << 20);
+
+            try (var in = cache.open(url)) {
+                assertArrayEquals(zip, in.readAllBytes());
+            }
+
+            try (var ch = cache.openChannel(url)) {
+                assertTrue(ch instanceof FileChannel);
+                assertEquals(zip.length, ch.size());
+            }
+
+            assertEquals(sent, server.rangedBytesSent.get());
+
+            // too large to be cached
+            var small = new CachingUrlOpener(Files.createTempDirectory(dir.toPath(), "small").toFile(), zip.length - 1);
+
+            try (var in = small.open(url)) {
+                assertArrayEquals(zip, in.readAllBytes());
+            }
+
+            assertEquals(0, small.getSize());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testCachingUrlOpenerCachesScannedArchive() throws IOException, InterruptedException {
+        var dir = Files.createTempDirectory("vfs-cache").toFile();
+        var previous = Vfs.getHttpUrlOpener();
+
+        try {
+            var url = new URL(server.getUrl() + TestFeedHttpServer.CACHED_TGZ_URI);
+            var cache = new CachingUrlOpener(dir, 4L << 20);
+
+            // readers stopping at the last byte they need never see the end of the body
+            try ( var tis = new TarArchiveInputStream(new GZIPInputStream(cache.open(url)))) {
+                var entries = 0;
+
+                while (tis.getNextEntry() != null) {
+                    entries++;
+                }
+
+                assertEquals(3, entries);
+            }
+
+            assertTrue(cache.getSize() > 0);
+
+            cache = new CachingUrlOpener(Files.createTempDirectory(dir.toPath(), "exact").toFile(), 4L << 20);
+
+            try ( var in = cache.open(url)) {
+                in.readNBytes(server.getCachedTgz().length);
+            }
+
+            assertEquals(server.getCachedTgz().length, cache.getSize());
+
+            cache = new CachingUrlOpener(Files.createTempDirectory(dir.toPath(), "scan").toFile(), 4L << 20);
+            Vfs.setHttpUrlOpener(cache);
+
+            var found = new ConcurrentLinkedQueue<String>();
+
+            try ( var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+                scanner.scanAsync(resolvePath(server.getUrl() + TestFeedHttpServer.CACHED_TGZ_URI)).await();
+            }
+
+            assertEquals(3, found.size());
+            assertTrue(cache.getSize() > 0);
+
+            var sent = server.cachedTgzBytesSent.get();
+            found.clear();
+
+            try ( var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+                scanner.scanAsync(resolvePath(server.getUrl() + TestFeedHttpServer.CACHED_TGZ_URI)).await();
+            }
+
+            assertEquals(3, found.size());
+            assertEquals(sent, server.cachedTgzBytesSent.get());
+        } finally {
+            Vfs.setHttpUrlOpener(previous);
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testDigestedScanReadsRemoteArchiveOnce() throws IOException, InterruptedException {
+        var content = new ConcurrentLinkedQueue<String>();
+        var sent = server.cachedTgzBytesSent.get();
+
+        try ( var scanner = new VfsScanner(f -> {
+            assertEquals(1, f.getDigests().size());
+
+            try {
+                content.add(f.getContentAsUTF8String());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        })) {
+            scanner.setDigestAlgorithms("SHA-256");
+            scanner.scanAsync(resolvePath(server.getUrl() + TestFeedHttpServer.CACHED_TGZ_URI)).await();
+        }
+
+        assertEquals(3, content.size());
+        assertTrue(content.contains("tar2"));
+        // reading the entries after they were digested mustn't download the archive again
+        assertEquals(sent + server.getCachedTgz().length, server.cachedTgzBytesSent.get());
+    }
+
+    @Test
+    public void testResumeInterruptedDownload() throws IOException {
+        var zip = server.getRangedZip();
+        var opener = new HttpClientUrlOpener();
+        opener.setRetryDelay(10);
+
+        var failures = server.flakyFailures.get();
+
+        try (var in = opener.open(new URL(server.getUrl() + TestFeedHttpServer.FLAKY_URI))) {
+            assertArrayEquals(zip, in.readAllBytes());
+        }
+
+        // bytes in flight when the connection dropped may be lost, so only count the interruption
+        assertTrue(server.flakyFailures.get() - failures >= 1);
+
+        opener.setMaxRetries(0);
+
+        try (var in = opener.open(new URL(server.getUrl() + TestFeedHttpServer.FLAKY_URI))) {
+            in.readAllBytes();
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadTimeoutOfStalledBody() throws IOException {
+        var zip = server.getRangedZip();
+        var url = new URL(server.getUrl() + TestFeedHttpServer.STALLED_URI);
+        var opener = new HttpClientUrlOpener();
+        opener.setReadTimeout(300);
+        opener.setRetryDelay(10);
+
+        var stalls = server.stalls.get();
+
+        // the stalled response times out and the download resumes
+        try (var in = opener.open(url)) {
+            assertArrayEquals(zip, in.readAllBytes());
+        }
+
+        assertEquals(1, server.stalls.get() - stalls);
+
+        opener.setMaxRetries(0);
+
+        var start = System.nanoTime();
+
+        try (var in = opener.open(url)) {
+            in.readAllBytes();
+            fail();
+        } catch (HttpTimeoutException ex) {
+            // expected
+        }
+
+        assertTrue(System.nanoTime() - start < SECONDS.toNanos(2));
+    }
+
     @Test
     public void testParsePath() {
         String[] parsedPath;
@@ -0,0 +1,897 @@
+/*
+ * PROPRIETARY/CONFIDENTIAL
+ */
+package net.uo1.vfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author m
+ */
+public class VfsScannerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testScanWithPendingTaskLimit() throws IOException {
+        var dir = tmp.newFolder("tree");
+
+        for (var i = 0; i < 50; i++) {
+            write(new File(dir, "file" + i + ".txt"), "file" + i);
+        }
+
+        zip(new File(dir, "archive.zip"), 50);
+
+        var found = ConcurrentHashMap.<String>newKeySet();
+        var inFlight = new AtomicInteger();
+        var peak = new AtomicInteger();
+        var submitting = new ThreadLocal<AtomicBoolean>();
+
+        // counts tasks from their submission until they're finished
+        var executor = new ThreadPoolExecutor(4, 4, 0, MILLISECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                submitting.get().set(true);
+                peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                super.execute(command);
+            }
+        };
+
+        try (var scanner = new VfsScanner(f -> {
+            found.add(f.getLastName());
+
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, executor, 2) {
+            @Override
+            protected void submit(ExecutorService executor, Runnable task) {
+                var submitted = new AtomicBoolean();
+
+                submitting.set(submitted);
+
+                // a task leaves the count before the scanner releases its permit
+                super.submit(executor, () -> {
+                    try {
+                        task.run();
+                    } finally {
+                        if (submitted.get()) {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }) {
+            assertEquals(2, scanner.getMaxPendingTasks());
+            scanner.scan(dir);
+        }
+
+        assertEquals(100, found.size());
+        assertTrue(found.contains("file0.txt"));
+        assertTrue(found.contains("entry49.txt"));
+        assertTrue(peak.get() > 0);
+        assertTrue("peak of " + peak.get() + " tasks", peak.get() <= 2);
+    }
+
+    @Test
+    public void testScanAsyncReusesScanner() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        for (var i = 0; i < 10; i++) {
+            write(new File(dir, "file" + i + ".txt"), "file" + i);
+        }
+
+        zip(new File(dir, "archive.zip"), 10);
+
+        try (var scanner = new VfsScanner(f -> {
+        })) {
+            for (var run = 0; run < 3; run++) {
+                var found = new AtomicInteger();
+
+                scanner.scanAsync(dir, f -> found.incrementAndGet()).await();
+
+                assertEquals(20, found.get());
+            }
+        }
+    }
+
+    @Test
+    public void testScanAsyncCollectsErrors() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        for (var i = 0; i < 5; i++) {
+            write(new File(dir, "file" + i + ".txt"), "file" + i);
+        }
+
+        try (var scanner = new VfsScanner(f -> {
+            if (f.getLastName().equals("file3.txt")) {
+                throw new IllegalStateException(f.getLastName());
+            }
+
+            if (f.getLastName().equals("file4.txt")) {
+                throw new AssertionError(f.getLastName());
+            }
+        })) {
+            var handle = scanner.scanAsync(dir);
+
+            try {
+                handle.await();
+                fail();
+            } catch (VfsScanException ex) {
+                assertEquals(2, ex.getErrors().size());
+
+                for (var error : ex.getErrors()) {
+                    if (error instanceof AssertionError) {
+                        assertEquals("file4.txt", error.getMessage());
+                    } else {
+                        assertEquals("file3.txt", error.getMessage());
+                    }
+                }
+            }
+
+            assertTrue(handle.isDone());
+        }
+    }
+
+    @Test
+    public void testScanTarArchives() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        write(new File(dir, "plain.tar"), tar(2));
+        write(new File(dir, "compressed.tar.gz"), gzip(tar(3)));
+
+        var bos = new ByteArrayOutputStream();
+        try (var zos = new ZipOutputStream(bos)) {
+            zos.putNextEntry(new ZipEntry("nested.tgz"));
+            zos.write(gzip(tar(4)));
+            zos.closeEntry();
+        }
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, "outer.zip")))) {
+            zos.putNextEntry(new ZipEntry("inner.zip"));
+            zos.write(bos.toByteArray());
+            zos.closeEntry();
+        }
+
+        var found = new ConcurrentHashMap<String, String>();
+        var files = new ConcurrentLinkedQueue<VfsFile>();
+
+        try (var scanner = new VfsScanner(f -> {
+            try {
+                found.put(f.toString(), f.getContentAsUTF8String());
+                files.add(f);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        })) {
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(9, found.size());
+        assertEquals("tar3", found.get(new File(dir, "outer.zip") + "/inner.zip/nested.tgz/dir/tar3.txt"));
+        assertEquals("tar1", found.get(new File(dir, "compressed.tar.gz") + "/dir/tar1.txt"));
+
+        for (var f : files) {
+            assertEquals(found.get(f.toString()), f.getContentAsUTF8String());
+        }
+    }
+
+    @Test
+    public void testScanCompressedFiles() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+        var zip = tmp.newFile("archive.zip");
+
+        zip(zip, 3);
+        write(new File(dir, "archive.zip.gz"), gzip(Files.readAllBytes(zip.toPath())));
+        write(new File(dir, "plain.txt.gz"), gzip("plain".getBytes(US_ASCII)));
+
+        var found = new ConcurrentHashMap<String, String>();
+
+        try (var scanner = new VfsScanner(f -> {
+            try {
+                found.put(f.toString(), f.getContentAsUTF8String());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        })) {
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(4, found.size());
+        assertEquals("plain", found.get(new File(dir, "plain.txt.gz") + "/plain.txt"));
+        assertEquals("entry2", found.get(new File(dir, "archive.zip.gz") + "/archive.zip/dir/entry2.txt"));
+        assertEquals("entry1", new VfsFile(new File(dir, "archive.zip.gz"), "archive.zip", "dir/entry1.txt").getContentAsUTF8String());
+    }
+
+    @Test
+    public void testScanBufferedNestedZips() throws IOException, InterruptedException {
+        var small = tmp.newFile("small.zip");
+        var large = tmp.newFile("large.zip");
+
+        zip(small, 20);
+        zip(large, 200);
+
+        var outer = tmp.newFile("outer.zip");
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(outer))) {
+            zos.putNextEntry(new ZipEntry("small.zip"));
+            zos.write(Files.readAllBytes(small.toPath()));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("large.zip"));
+            zos.write(Files.readAllBytes(large.toPath()));
+            zos.closeEntry();
+        }
+
+        var found = new ConcurrentHashMap<String, String>();
+
+        try (var scanner = new VfsScanner(f -> {
+            try {
+                found.put(f.toString(), f.getContentAsUTF8String());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        })) {
+            scanner.setNestedArchiveBufferLimit(small.length());
+            scanner.scanAsync(outer).await();
+        }
+
+        assertEquals(220, found.size());
+        assertEquals("entry19", found.get(outer + "/small.zip/dir/entry19.txt"));
+        assertEquals("entry199", found.get(outer + "/large.zip/dir/entry199.txt"));
+    }
+
+    @Test
+    public void testNestedArchiveBufferLimitBoundary() throws IOException, InterruptedException {
+        var nested = tmp.newFile("nested.zip");
+
+        zip(nested, 3);
+
+        var outer = tmp.newFile("boundary.zip");
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(outer))) {
+            zos.putNextEntry(new ZipEntry("nested.zip"));
+            zos.write(Files.readAllBytes(nested.toPath()));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("marker.txt"));
+            zos.closeEntry();
+        }
+
+        // a single thread streams a nested archive before the marker, but scans a buffered one's entries after it
+        for (var limit : new long[]{nested.length() - 1, nested.length(), VfsScanner.MAX_NESTED_ARCHIVE_BUFFER_LIMIT}) {
+            var order = new ConcurrentLinkedQueue<String>();
+
+            try (var scanner = new VfsScanner(f -> order.add(f.getLastName()), Executors.newSingleThreadExecutor())) {
+                scanner.setNestedArchiveBufferLimit(limit);
+                scanner.scanAsync(outer).await();
+            }
+
+            assertEquals(4, order.size());
+            assertEquals("limit " + limit, limit < nested.length() ? "entry0.txt" : "marker.txt", order.peek());
+        }
+
+        try (var scanner = new VfsScanner(f -> {
+        })) {
+            for (var limit : new long[]{-1, VfsScanner.MAX_NESTED_ARCHIVE_BUFFER_LIMIT + 1, Long.MAX_VALUE}) {
+                try {
+                    scanner.setNestedArchiveBufferLimit(limit);
+                    fail();
+                } catch (IllegalArgumentException ex) {
+                    assertEquals(0, scanner.getNestedArchiveBufferLimit());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScanBufferedNestedZipsWithinBudget() throws IOException, InterruptedException {
+        var nested = tmp.newFile("nested.zip");
+
+        zip(nested, 3);
+
+        var buffered = Runtime.getRuntime().availableProcessors();
+        var outer = tmp.newFile("many.zip");
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(outer))) {
+            for (var i = 0; i < buffered + 2; i++) {
+                zos.putNextEntry(new ZipEntry("nested" + i + ".zip"));
+                zos.write(Files.readAllBytes(nested.toPath()));
+                zos.closeEntry();
+            }
+        }
+
+        var order = new ConcurrentLinkedQueue<String>();
+
+        // a single thread scans every nested archive before running the tasks of buffered entries
+        try (var scanner = new VfsScanner(f -> {
+            if (f.getLastName().endsWith(".txt")) {
+                order.add(f.archived[0]);
+            }
+        }, Executors.newSingleThreadExecutor())) {
+            scanner.setNestedArchiveBufferLimit(nested.length());
+            scanner.scanAsync(outer).await();
+        }
+
+        assertEquals(3 * (buffered + 2), order.size());
+        // archives beyond the budget are streamed while the buffered ones wait
+        assertEquals("nested" + buffered + ".zip", order.peek());
+    }
+
+    @Test
+    public void testScanWithVirtualThreads() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        for (var i = 0; i < 20; i++) {
+            write(new File(dir, "file" + i + ".txt"), "file" + i);
+        }
+
+        zip(new File(dir, "archive.zip"), 20);
+        write(new File(dir, "archive.tar.gz"), gzip(tar(3)));
+        write(new File(dir, "single.txt.gz"), gzip("single".getBytes(US_ASCII)));
+        write(new File(dir, "solid.rar"), resource("solid.rar"));
+
+        var virtual = new ConcurrentHashMap<String, Boolean>();
+
+        try (var scanner = VfsScanner.withVirtualThreads(f -> virtual.put(f.getLastName(), Thread.currentThread().isVirtual()), 2)) {
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(47, virtual.size());
+        assertTrue(virtual.get("file0.txt"));
+        assertFalse(virtual.get("entry0.txt"));
+
+        // streamed archives are decompressed in the thread delivering their entries
+        assertFalse(virtual.get("tar0.txt"));
+        assertFalse(virtual.get("single.txt"));
+        assertFalse(virtual.get("c.txt"));
+    }
+
+    @Test
+    public void testScanSkipsSymlinkCycles() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+        var sub = new File(dir, "sub");
+        var other = tmp.newFolder("other");
+
+        sub.mkdir();
+        write(new File(dir, "top.txt"), "top");
+        write(new File(sub, "nested.txt"), "nested");
+        write(new File(other, "linked.txt"), "linked");
+
+        Files.createSymbolicLink(new File(sub, "loop").toPath(), dir.toPath());
+        Files.createSymbolicLink(new File(sub, "other").toPath(), other.toPath());
+
+        var found = new ConcurrentLinkedQueue<String>();
+
+        try (var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(3, found.size());
+        assertTrue(found.containsAll(List.of("top.txt", "nested.txt", "linked.txt")));
+    }
+
+    @Test
+    public void testScanFilter() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        write(new File(dir, "data.csv"), "data");
+        write(new File(dir, "image.png"), "image");
+        write(new File(dir, "broken.zip"), "not a zip");
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, "keep.zip")))) {
+            zos.putNextEntry(new ZipEntry("inner.csv"));
+            zos.write("inner".getBytes(US_ASCII));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("inner.png"));
+            zos.write("inner".getBytes(US_ASCII));
+            zos.closeEntry();
+        }
+
+        var found = new ConcurrentLinkedQueue<String>();
+
+        try (var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+            scanner.setFilter(ScanFilter.glob("*.csv"));
+            scanner.scanAsync(new File(dir, "keep.zip")).await();
+            scanner.scanAsync(new File(dir, "data.csv")).await();
+
+            assertEquals(2, found.size());
+            assertTrue(found.containsAll(List.of("data.csv", "inner.csv")));
+
+            // broken.zip can't contain a match, so it must not even be opened
+            found.clear();
+            scanner.setFilter(ScanFilter.glob(dir + "/keep.zip/**").and(ScanFilter.maxSize(100)));
+            scanner.scanAsync(dir).await();
+
+            assertEquals(2, found.size());
+            assertTrue(found.containsAll(List.of("inner.csv", "inner.png")));
+        }
+    }
+
+    @Test
+    public void testIncrementalScanWithManifest() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+        var manifestFile = new File(tmp.getRoot(), "manifest.bin");
+
+        write(new File(dir, "a.txt"), "a");
+        zip(new File(dir, "archive.zip"), 3);
+
+        var found = new ConcurrentLinkedQueue<String>();
+
+        try (var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+            scanner.setManifest(ScanManifest.load(manifestFile));
+            scanner.scanAsync(dir).await();
+            scanner.getManifest().save();
+
+            assertEquals(4, found.size());
+
+            found.clear();
+            scanner.setManifest(ScanManifest.load(manifestFile));
+            scanner.scanAsync(dir).await();
+
+            assertEquals(0, found.size());
+            assertEquals(5, scanner.getManifest().size());
+
+            write(new File(dir, "a.txt"), "changed");
+            new File(dir, "a.txt").setLastModified(System.currentTimeMillis() + 5000);
+            write(new File(dir, "b.txt"), "b");
+            new File(dir, "archive.zip").delete();
+
+            scanner.getManifest().save();
+            scanner.setManifest(ScanManifest.load(manifestFile));
+            scanner.scanAsync(dir).await();
+            scanner.getManifest().prune();
+
+            assertEquals(2, found.size());
+            assertTrue(found.containsAll(List.of("a.txt", "b.txt")));
+            assertEquals(2, scanner.getManifest().size());
+        }
+    }
+
+    @Test
+    public void testMetadataOnlyScan() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        zip(new File(dir, "archive.zip"), 3);
+        write(new File(dir, "plain.tar"), tar(2));
+
+        var bos = new ByteArrayOutputStream();
+        try (var zos = new ZipOutputStream(bos)) {
+            zos.putNextEntry(new ZipEntry("nested.zip"));
+            zos.write(Files.readAllBytes(new File(dir, "archive.zip").toPath()));
+            zos.closeEntry();
+        }
+        write(new File(dir, "outer.zip"), bos.toByteArray());
+
+        var found = new ConcurrentHashMap<String, VfsFile>();
+
+        try (var scanner = new VfsScanner(f -> found.put(f.getLastPath(), f))) {
+            scanner.setMetadataOnly(true);
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(6, found.size());
+
+        var entry = found.get("dir/entry2.txt");
+        assertEquals(Long.valueOf(6), entry.length());
+        assertNotNull(entry.getCompressedSize());
+        assertEquals("DEFLATED", entry.getMethod());
+        assertEquals("entry2", entry.getContentAsUTF8String());
+
+        var crc = new CRC32();
+        crc.update("entry2".getBytes(US_ASCII));
+        assertEquals(Long.valueOf(crc.getValue()), entry.getCrc());
+
+        assertTrue(found.containsKey("nested.zip"));
+        assertEquals(Long.valueOf(4), found.get("dir/tar1.txt").length());
+    }
+
+    @Test
+    public void testExtractAsync() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+        var target = tmp.newFolder("target");
+
+        write(new File(dir, "a.txt"), "a");
+        new File(dir, "sub").mkdir();
+        write(new File(dir, "sub/b.txt"), "b");
+        zip(new File(dir, "archive.zip"), 3);
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, "evil.zip")))) {
+            zos.putNextEntry(new ZipEntry("../../evil.txt"));
+            zos.write("evil".getBytes(US_ASCII));
+            zos.closeEntry();
+        }
+
+        try (var scanner = new VfsScanner(f -> {
+        })) {
+            try {
+                scanner.extractAsync(dir, target).await();
+                fail();
+            } catch (VfsScanException ex) {
+                assertEquals(1, ex.getErrors().size());
+            }
+        }
+
+        assertEquals("a", Files.readString(new File(target, "a.txt").toPath()));
+        assertEquals("b", Files.readString(new File(target, "sub/b.txt").toPath()));
+        assertEquals("entry2", Files.readString(new File(target, "archive.zip/dir/entry2.txt").toPath()));
+        assertFalse(new File(tmp.getRoot(), "evil.txt").exists());
+    }
+
+    @Test
+    public void testExtractDirectoryEntries() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("dirs");
+        var target = tmp.newFolder("dirs-target");
+        var inner = new ByteArrayOutputStream();
+
+        // like zip -r, with explicit entries for the directories, including an empty one
+        try (var zos = new ZipOutputStream(inner)) {
+            zos.putNextEntry(new ZipEntry("d/"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("d/a.txt"));
+            zos.write("a".getBytes(US_ASCII));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("d/empty/"));
+            zos.closeEntry();
+        }
+
+        write(new File(dir, "t.zip"), inner.toByteArray());
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, "outer.zip")))) {
+            zos.putNextEntry(new ZipEntry("d/"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("d/t.zip"));
+            zos.write(inner.toByteArray());
+            zos.closeEntry();
+        }
+
+        try (var scanner = new VfsScanner(f -> {
+        })) {
+            scanner.extractAsync(dir, target).await();
+        }
+
+        assertEquals("a", Files.readString(new File(target, "t.zip/d/a.txt").toPath()));
+        assertTrue(new File(target, "t.zip/d/empty").isDirectory());
+        assertEquals("a", Files.readString(new File(target, "outer.zip/d/t.zip/d/a.txt").toPath()));
+        assertTrue(new File(target, "outer.zip/d/t.zip/d/empty").isDirectory());
+    }
+
+    @Test
+    public void testScanWithDigests() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        zip(new File(dir, "archive.zip"), 5);
+        write(new File(dir, "compressed.tar.gz"), gzip(tar(3)));
+
+        var found = new ConcurrentHashMap<String, VfsFile>();
+
+        try (var scanner = new VfsScanner(f -> found.put(f.getLastPath(), f))) {
+            scanner.setDigestAlgorithms("CRC32", "SHA-1");
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(8, found.size());
+
+        for (var f : found.values()) {
+            assertEquals(2, f.getDigests().size());
+            assertEquals(20, f.getDigests().get("SHA-1").length);
+        }
+
+        var entry = found.get("dir/entry3.txt");
+        assertEquals(entry.getCrc().longValue(), ByteBuffer.wrap(entry.getDigests().get("CRC32")).getInt() & 0xffffffffL);
+        assertEquals("tar2", found.get("dir/tar2.txt").getContentAsUTF8String());
+    }
+
+    @Test
+    public void testDigestsOfStreamedEntriesShareTheConsumersRead() throws IOException, InterruptedException, NoSuchAlgorithmException {
+        var large = new byte[3 << 20];
+        new Random(1).nextBytes(large);
+
+        var bos = new ByteArrayOutputStream();
+
+        try (var tos = new TarArchiveOutputStream(bos)) {
+            var entry = new TarArchiveEntry("small.bin");
+            entry.setSize(5);
+            tos.putArchiveEntry(entry);
+            tos.write("small".getBytes(US_ASCII));
+            tos.closeArchiveEntry();
+
+            entry = new TarArchiveEntry("large.bin");
+            entry.setSize(large.length);
+            tos.putArchiveEntry(entry);
+            tos.write(large);
+            tos.closeArchiveEntry();
+
+            entry = new TarArchiveEntry("unread.bin");
+            entry.setSize(large.length);
+            tos.putArchiveEntry(entry);
+            tos.write(large);
+            tos.closeArchiveEntry();
+        }
+
+        var archive = tmp.newFile("digests.tar.gz");
+        write(archive, gzip(bos.toByteArray()));
+
+        var found = new ConcurrentHashMap<String, VfsFile>();
+        var content = new ConcurrentHashMap<String, byte[]>();
+        var digestedFirst = new ConcurrentHashMap<String, Boolean>();
+
+        try (var scanner = new VfsScanner(f -> {
+            found.put(f.getLastName(), f);
+            digestedFirst.put(f.getLastName(), !f.getDigests().isEmpty());
+
+            if (!f.getLastName().equals("unread.bin")) {
+                try (var in = f.open()) {
+                    content.put(f.getLastName(), in.readAllBytes());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        })) {
+            scanner.setDigestAlgorithms("SHA-1");
+            scanner.scanAsync(archive).await();
+        }
+
+        var sha1 = MessageDigest.getInstance("SHA-1");
+
+        assertArrayEquals("small".getBytes(US_ASCII), content.get("small.bin"));
+        assertArrayEquals(large, content.get("large.bin"));
+        assertArrayEquals(sha1.digest("small".getBytes(US_ASCII)), found.get("small.bin").getDigests().get("SHA-1"));
+        assertArrayEquals(sha1.digest(large), found.get("large.bin").getDigests().get("SHA-1"));
+        assertArrayEquals(sha1.digest(large), found.get("unread.bin").getDigests().get("SHA-1"));
+        // small entries are digested before the consumer, large ones while it reads them
+        assertTrue(digestedFirst.get("small.bin"));
+        assertFalse(digestedFirst.get("large.bin"));
+    }
+
+    @Test
+    public void testNestedArchiveDedup() throws IOException, InterruptedException {
+        var inner = tmp.newFile("inner.zip");
+
+        zip(inner, 20);
+
+        var dir = tmp.newFolder("tree");
+
+        for (var name : new String[]{"a.zip", "b.zip"}) {
+            try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, name)))) {
+                zos.putNextEntry(new ZipEntry("inner.zip"));
+                zos.write(Files.readAllBytes(inner.toPath()));
+                zos.closeEntry();
+            }
+        }
+
+        var found = new ConcurrentHashMap<String, VfsFile>();
+
+        try (var scanner = new VfsScanner(f -> found.put(f.toString(), f), Executors.newSingleThreadExecutor())) {
+            scanner.setNestedArchiveDedup(true);
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(40, found.size());
+
+        var duplicates = found.values().stream().filter(f -> f.getDuplicateOf() != null).toList();
+        assertEquals(20, duplicates.size());
+
+        var duplicate = duplicates.get(0);
+        assertEquals(duplicate.getLastPath(), duplicate.getDuplicateOf().getLastPath());
+        assertEquals(duplicate.getCrc(), duplicate.getDuplicateOf().getCrc());
+        assertEquals(duplicate.getLastName().replace(".txt", ""), duplicate.getContentAsUTF8String());
+    }
+
+    @Test
+    public void testNestedArchiveDedupCapsRecordedEntries() throws IOException, InterruptedException {
+        var small = tmp.newFile("small.zip");
+        var large = tmp.newFile("large.zip");
+
+        zip(small, 20);
+        zip(large, ScanHandle.MAX_RECORDED_ENTRIES_PER_ARCHIVE + 1);
+
+        var dir = tmp.newFolder("tree");
+
+        for (var name : new String[]{"a.zip", "b.zip"}) {
+            try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, name)))) {
+                for (var inner : new File[]{small, large}) {
+                    zos.putNextEntry(new ZipEntry(inner.getName()));
+                    zos.write(Files.readAllBytes(inner.toPath()));
+                    zos.closeEntry();
+                }
+            }
+        }
+
+        var found = new ConcurrentHashMap<String, VfsFile>();
+
+        try (var scanner = new VfsScanner(f -> found.put(f.toString(), f), Executors.newSingleThreadExecutor())) {
+            scanner.setNestedArchiveDedup(true);
+            scanner.scanAsync(dir).await();
+        }
+
+        assertEquals(2 * (20 + ScanHandle.MAX_RECORDED_ENTRIES_PER_ARCHIVE + 1), found.size());
+
+        // the large archive's recording was dropped, so its copy was scanned again
+        var duplicates = found.values().stream().filter(f -> f.getDuplicateOf() != null).toList();
+        assertEquals(20, duplicates.size());
+        assertTrue(duplicates.stream().allMatch(f -> f.archived[0].equals("small.zip")));
+    }
+
+    @Test
+    public void testScanRarArchives() throws IOException, InterruptedException {
+        var dir = tmp.newFolder("tree");
+
+        // the same three stored entries, one archive flagged solid
+        for (var name : List.of("stored.rar", "solid.rar")) {
+            write(new File(dir, name), resource(name));
+        }
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(new File(dir, "outer.zip")))) {
+            for (var name : List.of("stored.rar", "solid.rar")) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(resource(name));
+                zos.closeEntry();
+            }
+        }
+
+        var found = new ConcurrentHashMap<String, String>();
+
+        try (var scanner = new VfsScanner(f -> {
+            try {
+                found.put(f.toString(), f.getContentAsUTF8String());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            // abandons the entry's stream while the archive is still being extracted
+            if (f.getLastName().equals("a.txt")) {
+                throw new IllegalStateException(f.toString());
+            }
+        })) {
+            try {
+                scanner.scanAsync(dir).await();
+                fail();
+            } catch (VfsScanException ex) {
+                assertEquals(4, ex.getErrors().size());
+            }
+        }
+
+        assertEquals(12, found.size());
+
+        for (var rar : List.of(dir + "/stored.rar", dir + "/solid.rar", dir + "/outer.zip/stored.rar", dir + "/outer.zip/solid.rar")) {
+            assertEquals(rar, "alpha\n", found.get(rar + "/a.txt"));
+            assertEquals(rar, "bravo\n", found.get(rar + "/dir\\b.txt"));
+            assertEquals(rar, "charlie\n", found.get(rar + "/c.txt"));
+        }
+    }
+
+    @Test
+    public void testScanFilterSkipsRarExtraction() throws IOException, InterruptedException {
+        var rar = resource("stored.rar");
+        var bravo = new String(rar, US_ASCII).indexOf("bravo");
+
+        // fails the CRC check of dir\b.txt if it's extracted
+        rar[bravo] = 'B';
+
+        var outer = tmp.newFile("outer.zip");
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(outer))) {
+            zos.putNextEntry(new ZipEntry("corrupt.rar"));
+            zos.write(rar);
+            zos.closeEntry();
+        }
+
+        var found = new ConcurrentLinkedQueue<String>();
+
+        try (var scanner = new VfsScanner(f -> found.add(f.getLastName()))) {
+            try {
+                scanner.scanAsync(outer).await();
+                fail();
+            } catch (VfsScanException ex) {
+                assertEquals(1, ex.getErrors().size());
+            }
+
+            found.clear();
+            scanner.setFilter(ScanFilter.of(f -> !f.getLastName().endsWith("b.txt")));
+            scanner.scanAsync(outer).await();
+
+            assertEquals(2, found.size());
+            assertTrue(found.containsAll(List.of("a.txt", "c.txt")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPendingTaskLimit() {
+        try (var scanner = new VfsScanner(f -> {
+        })) {
+            scanner.setMaxPendingTasks(0);
+        }
+    }
+
+    static void write(File file, String content) throws IOException {
+        try (var o = new FileOutputStream(file)) {
+            o.write(content.getBytes(US_ASCII));
+        }
+    }
+
+    static void write(File file, byte[] content) throws IOException {
+        try (var o = new FileOutputStream(file)) {
+            o.write(content);
+        }
+    }
+
+    static byte[] resource(String name) throws IOException {
+        try (var in = VfsScannerTest.class.getResourceAsStream(name)) {
+            return in.readAllBytes();
+        }
+    }
+
+    static byte[] tar(int entries) throws IOException {
+        var bos = new ByteArrayOutputStream();
+
+        try (var tos = new TarArchiveOutputStream(bos)) {
+            tos.putArchiveEntry(new TarArchiveEntry("dir/"));
+            tos.closeArchiveEntry();
+
+            for (var i = 0; i < entries; i++) {
+                var data = ("tar" + i).getBytes(US_ASCII);
+                var entry = new TarArchiveEntry("dir/tar" + i + ".txt");
+                entry.setSize(data.length);
+                tos.putArchiveEntry(entry);
+                tos.write(data);
+                tos.closeArchiveEntry();
+            }
+        }
+
+        return bos.toByteArray();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        var bos = new ByteArrayOutputStream();
+
+        try (var gos = new GZIPOutputStream(bos)) {
+            gos.write(data);
+        }
+
+        return bos.toByteArray();
+    }
+
+    static void zip(File file, int entries) throws IOException {
+        try (var zos = new ZipOutputStream(new FileOutputStream(file))) {
+            for (var i = 0; i < entries; i++) {
+                zos.putNextEntry(new ZipEntry("dir/entry" + i + ".txt"));
+                zos.write(("entry" + i).getBytes(US_ASCII));
+                zos.closeEntry();
+            }
+        }
+    }
+
+}